@@ -30,16 +30,16 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.UUID;
 
 import de.sauernetworks.stm_bootloader.Bootloader;
 import de.sauernetworks.stm_bootloader.Commands;
 import de.sauernetworks.stm_bootloader.Protocol;
+import de.sauernetworks.stm_bootloader.Transport;
 import de.sauernetworks.tools.Logger;
 
 /**
@@ -298,6 +298,12 @@ public class BluetoothService {
 
     public void getVersion() {
         mCommands.setVersion_in_progress(true);
+        ConnectedThread r;
+        synchronized (this) {
+            r = mConnectedThread;
+        }
+        if (r != null)
+            r.wakeUp();
     }
 
     public void setMemoryFilename(String s) {
@@ -533,39 +539,31 @@ public class BluetoothService {
      * It handles all incoming and outgoing transmissions.
      */
     private class ConnectedThread extends Thread {
+        private static final long LINK_CHECK_INTERVAL = 1000; ///< Interval to check if the link is still alive in milliseconds
+
         private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+        private final Transport mmTransport;
+        private volatile boolean mmCancelled;
 
         public ConnectedThread(BluetoothSocket socket, String socketType) {
             mLog.Log(9, "create ConnectedThread: " + socketType);
             mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+            Transport tmp = null;
             // Get the BluetoothSocket input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmp = new BluetoothTransport(socket);
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-            mBootloader = new Bootloader(mContext, mmInStream, mmOutStream, mLog, mHandler);
+            mmTransport = tmp;
+            mBootloader = new Bootloader(mmTransport, mLog, mHandler);
+            mBootloader.setBackupDirectory(new File(Environment.getExternalStorageDirectory(), "STM32"));
+            mBootloader.setLinkAddress(socket.getRemoteDevice().getAddress());
         }
 
         public int readTimeout(byte[] b, int timeoutMillis) throws IOException {
-            int bufferOffset = 0;
-            long maxTimeMillis = System.currentTimeMillis() + timeoutMillis;
-            while (System.currentTimeMillis() < maxTimeMillis && bufferOffset < b.length) {
-                int readLength = java.lang.Math.min(mmInStream.available(), b.length - bufferOffset);
-                // can alternatively use bufferedReader, guarded by isReady():
-                int readResult = mmInStream.read(b, bufferOffset, readLength);
-                if (readResult == -1) break;
-                bufferOffset += readResult;
-            }
-            return bufferOffset;
+            return mmTransport.read(b, 0, b.length, timeoutMillis);
         }
 
         public void run() {
@@ -575,13 +573,20 @@ public class BluetoothService {
             //byte[] line = new byte[1024];
             //int currPos = 0;
 
-            // Keep listening to the InputStream while connected
-            while (true) {
+            // Sleep until a command is requested, the reader thread of the
+            // transport does the listening on the InputStream
+            while (!mmCancelled) {
                 try {
+                    synchronized (this) {
+                        if (!(mCommands.isVersion_in_progress() && !mCommands.isRunning()) && !mmCancelled)
+                            wait(LINK_CHECK_INTERVAL);
+                    }
+                    // Throws if the reader thread lost the connection
+                    mmTransport.available();
                     if (mCommands.isVersion_in_progress() && !mCommands.isRunning()) {
                         mCommands.setRunning(true);
                         mLog.Log("VERSION Command in Progress!");
-                        numRead = (int) mmInStream.skip(mmInStream.available());
+                        mmTransport.drain();
                         send_ml_packet(0x03, "v 0 0");
                         numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
                         switch (buffer[0]) {
@@ -778,7 +783,11 @@ public class BluetoothService {
                     }
                     */
 
+                } catch (InterruptedException e) {
+                    break;
                 } catch (IOException e) {
+                    if (mmCancelled)
+                        break;
                     Log.e(TAG, "disconnected", e);
                     connectionLost();
                     // Start the service over to restart listening mode
@@ -798,7 +807,8 @@ public class BluetoothService {
                 LogTextView.d(TAG, String.format("write(0x%02x)", buffer[i]));
             }*/
             try {
-                mmOutStream.write(buffer);
+                mmTransport.write(buffer, 0, buffer.length);
+                mmTransport.flush();
 
                 // Share the sent message back to the UI Activity
                 mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
@@ -808,9 +818,15 @@ public class BluetoothService {
             }
         }
 
+        public synchronized void wakeUp() {
+            notifyAll();
+        }
+
         public void cancel() {
+            mmCancelled = true;
+            wakeUp();
             try {
-                mmSocket.close();
+                mmTransport.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
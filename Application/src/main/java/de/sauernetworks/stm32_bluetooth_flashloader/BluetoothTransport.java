@@ -0,0 +1,43 @@
+package de.sauernetworks.stm32_bluetooth_flashloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+
+import de.sauernetworks.stm_bootloader.StreamTransport;
+
+/**
+ * Transport for the bootloader on top of a connected RFCOMM socket.
+ */
+public class BluetoothTransport extends StreamTransport {
+    private final BluetoothSocket mmSocket;
+
+    public BluetoothTransport(BluetoothSocket socket) throws IOException {
+        super(socket.getInputStream(), socket.getOutputStream());
+        mmSocket = socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mmSocket.close();
+    }
+}
@@ -55,13 +55,11 @@ import java.io.IOException;
 
 import de.sauernetworks.stm_bootloader.Bootloader;
 import de.sauernetworks.stm_bootloader.Commands;
+import de.sauernetworks.stm_bootloader.FirmwareCache;
 import de.sauernetworks.stm_bootloader.OnBootloaderEventListener;
 import de.sauernetworks.tools.FileDialog;
 import de.sauernetworks.tools.Logger;
 
-import static de.sauernetworks.stm_bootloader.Protocol.STM32_BYTE_COUNT;
-import static de.sauernetworks.stm_bootloader.Protocol.STM32_PAGE_COUNT;
-
 /**
  * This fragment controls Bluetooth to communicate with other devices.
  */
@@ -103,6 +101,7 @@ public class BluetoothUpdaterFragment extends Fragment {
     private ProgressDialog mProgressDialog;
 
     private String mConnectedDeviceName = null;
+    private final FirmwareCache mFirmwareCache = new FirmwareCache(); // Kept across connections to flash one board after another
     private BluetoothAdapter mBluetoothAdapter = null;
     private BluetoothService mBluetoothService = null;
 
@@ -217,15 +216,17 @@ public class BluetoothUpdaterFragment extends Fragment {
             case DIALOG_ERASE_PROGRESS:
                 mProgressDialog = new ProgressDialog(this.getActivity());
                 mProgressDialog.setMessage("Erasing Memory..");
-                mProgressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+                mProgressDialog.setMax(100);
+                mProgressDialog.setProgressNumberFormat(null);
+                mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
                 mProgressDialog.setCancelable(false);
                 if (!mProgressDialog.isShowing())
                     mProgressDialog.show();
                 break;
             case DIALOG_DOWNLOAD_PROGRESS:
                 mProgressDialog = new ProgressDialog(this.getActivity());
-                mProgressDialog.setMessage("Downloading memory..\n(1/"+String.valueOf((STM32_PAGE_COUNT * STM32_BYTE_COUNT) / 1024)+" kb)");
-                mProgressDialog.setMax(STM32_PAGE_COUNT);
+                mProgressDialog.setMessage("Downloading memory..\n(1/"+String.valueOf(mBootloader.getFlashSize() / 1024)+" kb)");
+                mProgressDialog.setMax((int) (mBootloader.getFlashSize() / mBootloader.getReadBlockSize()));
                 mProgressDialog.setProgressNumberFormat("%1d of %2d Pages read");
                 mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
                 mProgressDialog.setCancelable(false);
@@ -241,7 +242,7 @@ public class BluetoothUpdaterFragment extends Fragment {
                 if ((firmware_upload_size / 256) <= 1)
                     mProgressDialog.setMax(1);
                 else
-                    mProgressDialog.setMax((int)(firmware_upload_size / STM32_BYTE_COUNT));
+                    mProgressDialog.setMax((int)(firmware_upload_size / mBootloader.getWriteBlockSize()));
                 mProgressDialog.setProgressNumberFormat("%1d of %2d Pages written");
                 mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
                 mProgressDialog.setCancelable(false);
@@ -312,7 +313,7 @@ public class BluetoothUpdaterFragment extends Fragment {
 
         mPath = new File(Environment.getExternalStorageDirectory() + "//STM32//");
         fileWriteDialog = new FileDialog(this.getActivity(), mPath);
-        fileWriteDialog.setFileEndsWith(".bin");
+        fileWriteDialog.setFileEndsWith(".bin", ".hex", ".ihex", ".s19", ".s28", ".s37", ".srec", ".mot", ".elf", ".axf");
 
         fileReadDialog = new FileDialog(this.getActivity(), mPath);
         fileReadDialog.setSelectDirectoryOption(false);
@@ -793,9 +794,9 @@ public class BluetoothUpdaterFragment extends Fragment {
         protected void onProgressUpdate(Long... num) {
             mProgressDialog.setProgress(num[0].intValue());
             if (mBootloader.getFullReadMemory())
-                mProgressDialog.setMessage("Downloading whole memory.. ("+String.valueOf(((num[0]+1)* STM32_BYTE_COUNT)/1024)+"/"+((STM32_BYTE_COUNT*STM32_PAGE_COUNT)/1024)+" kb)");
+                mProgressDialog.setMessage("Downloading whole memory.. ("+String.valueOf(((num[0]+1)* mBootloader.getReadBlockSize())/1024)+"/"+(mBootloader.getFlashSize()/1024)+" kb)");
             else
-                mProgressDialog.setMessage("Downloading memory.. ("+String.valueOf(((num[0]+1)* STM32_BYTE_COUNT)/1024)+" kb)");
+                mProgressDialog.setMessage("Downloading memory.. ("+String.valueOf(((num[0]+1)* mBootloader.getReadBlockSize())/1024)+" kb)");
         }
     }
 
@@ -805,10 +806,10 @@ public class BluetoothUpdaterFragment extends Fragment {
         @Override
         protected Integer doInBackground(String... params) {
             try {
-                mBootloader.writeMemory(params[0]);
-                if (wrPage[0] != 0) {
-                    mLog.Log(1, "Wrote " + String.valueOf(wrPage[0]) + " Pages");
-                    return 1;
+                if (mBootloader.writeMemory(params[0])) {
+                    int pages = mBootloader.getTransferStats().getPages();
+                    mLog.Log(1, "Wrote " + String.valueOf(pages) + " Pages");
+                    return pages > 0 ? 1 : 2;
                 } else {
                     mLog.Log(Constants.ERROR, "Write error!");
                     return 0;
@@ -831,9 +832,10 @@ public class BluetoothUpdaterFragment extends Fragment {
             mBootloader.setOnWriteByteListener(new OnBootloaderEventListener() {
                 @Override
                 public void onByte(long[] num) {
-                    publishProgress(num[0], num[1], num[2]);
+                    publishProgress(num[0], num[1], num[2], num[3]);
                     wrPage[0] = num[0];
                     wrPage[1] = num[1];
+                    wrPage[2] = num[3];
                 }
             });
         }
@@ -850,6 +852,11 @@ public class BluetoothUpdaterFragment extends Fragment {
                 mLog.Log(1, "Upload memory complete in " + String.format("%.2f", timeWriteMemorySeconds) + " seconds! " + size);
                 Toast.makeText(getActivity(), "Upload memory complete in " + String.format("%.2f", timeWriteMemorySeconds) + " seconds! " + size, Toast.LENGTH_SHORT).show();
                 LogTextView(1, "Upload memory complete in " + String.format("%.2f", timeWriteMemorySeconds) + " seconds! " + size);
+            } else if (result == 2) {
+                // Differential write or the flash manifest found every erase page unchanged
+                mLog.Log(1, "All pages unchanged, nothing to upload");
+                Toast.makeText(getActivity(), "All pages unchanged, nothing to upload", Toast.LENGTH_SHORT).show();
+                LogTextView(1, "All pages unchanged, nothing to upload");
             } else {
                 if (wrPage == null) {
                     wrPage = new long[4];
@@ -857,8 +864,8 @@ public class BluetoothUpdaterFragment extends Fragment {
                     wrPage[1] = 1;
                     wrPage[2] = 1;
                 }
-                mLog.Log(1, "Uploading memory failed on Page " + String.valueOf(wrPage[0]) + " of " + String.valueOf(wrPage[2] / STM32_BYTE_COUNT) + " on Byte " + String.valueOf((wrPage[0] * STM32_BYTE_COUNT) + wrPage[1]));
-                LogTextView(1, "Uploading memory failed on Page " + String.valueOf(wrPage[0]) + " of " + String.valueOf(wrPage[2] / STM32_BYTE_COUNT) + " on Byte " + String.valueOf((wrPage[0] * STM32_BYTE_COUNT) + wrPage[1]));
+                mLog.Log(1, "Uploading memory failed on Page " + String.valueOf(wrPage[0]) + " of " + String.valueOf(wrPage[2] / mBootloader.getWriteBlockSize()) + " on Byte " + String.valueOf((wrPage[0] * mBootloader.getWriteBlockSize()) + wrPage[1]));
+                LogTextView(1, "Uploading memory failed on Page " + String.valueOf(wrPage[0]) + " of " + String.valueOf(wrPage[2] / mBootloader.getWriteBlockSize()) + " on Byte " + String.valueOf((wrPage[0] * mBootloader.getWriteBlockSize()) + wrPage[1]));
                 Toast.makeText(getActivity(), "Failed to upload memory", Toast.LENGTH_SHORT).show();
             }
             writeMemoryRunning = false;
@@ -866,8 +873,13 @@ public class BluetoothUpdaterFragment extends Fragment {
 
         @Override
         protected void onProgressUpdate(Long... bufWrite) {
+            // The size of a HEX, S-record or ELF file is not the size of the firmware in it
+            if (bufWrite[3] != firmware_upload_size) {
+                firmware_upload_size = bufWrite[3];
+                mProgressDialog.setMax((int) Math.max(1, firmware_upload_size / mBootloader.getWriteBlockSize()));
+            }
             mProgressDialog.setProgress(bufWrite[0].intValue());
-            int currByte = (bufWrite[0].intValue() * STM32_BYTE_COUNT) + bufWrite[1].intValue();
+            int currByte = (bufWrite[0].intValue() * mBootloader.getWriteBlockSize()) + bufWrite[1].intValue();
             /*if (currByte > 1024)
                 mProgressDialog.setMessage("Uploading memory..\n("+ String.valueOf(currByte) +"/"+String.valueOf(firmware_upload_size / 1024)+" kb)");
             else*/
@@ -910,6 +922,7 @@ public class BluetoothUpdaterFragment extends Fragment {
                 Toast.makeText(getActivity(), "Failed to extended erase device!", Toast.LENGTH_SHORT).show();
                 mLog.Log(Constants.ERROR, "EER: Failed to extended erase device!");
             }
+            mBootloader.setOnEraseProgressListener(null);
             closeDialog();
         }
 
@@ -919,10 +932,21 @@ public class BluetoothUpdaterFragment extends Fragment {
             LogTextView(4, "Erase Memory started!");
             mLog.Log(4, "EER: Erase Memory started!");
             createDialog(DIALOG_ERASE_PROGRESS);
+
+            mBootloader.setOnEraseProgressListener(new OnBootloaderEventListener() {
+                @Override
+                public void onByte(long[] num) {
+                    // Estimated progress, never shown as complete before the bootloader answered
+                    int percent = num[1] > 0 ? (int) Math.min(99, num[0] * 100 / num[1]) : 0;
+                    publishProgress(percent, (int) (num[0] / 1000), (int) (num[1] / 1000));
+                }
+            });
         }
 
         @Override
         protected void onProgressUpdate(Integer... num) {
+            mProgressDialog.setProgress(num[0]);
+            mProgressDialog.setMessage("Erasing Memory.. (" + num[1] + " of about " + num[2] + " seconds)");
         }
     }
 
@@ -990,6 +1014,19 @@ public class BluetoothUpdaterFragment extends Fragment {
                     mLog.Log(2, "Connected to " + mConnectedDeviceName);
                     LogTextView(2, "Connected to " + mConnectedDeviceName);
                     break;
+                case Constants.MESSAGE_WRITE_MEMORY_FAILED:
+                    long[] errBuf = (long[]) msg.obj;
+                    String failed;
+                    if (errBuf.length > 3)
+                        failed = String.format("Write failed at 0x%08x (Page %d)", errBuf[3], errBuf[0]);
+                    else
+                        failed = "Write failed on Page " + String.valueOf(errBuf[0]);
+                    mLog.Log(Constants.ERROR, failed);
+                    LogTextView(1, failed);
+                    if (null != activity) {
+                        Toast.makeText(activity, failed, Toast.LENGTH_LONG).show();
+                    }
+                    break;
                 case Constants.MESSAGE_TOAST:
                     if (null != activity) {
                         Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
@@ -1080,7 +1117,15 @@ public class BluetoothUpdaterFragment extends Fragment {
             mBootloader.setSkipReadOutBytes(Integer.parseInt(sharedPrefs.getString("prefSkipBytes", "32")));
             mBootloader.setFullReadMemory(sharedPrefs.getBoolean("prefFullRead", false));
             mBootloader.setPreEraseAll(sharedPrefs.getBoolean("prefEraseAll", true));
+            mBootloader.setDifferentialWrite(sharedPrefs.getBoolean("prefDifferentialWrite", false));
+            mBootloader.setVerifyAfterWrite(sharedPrefs.getBoolean("prefVerifyWrite", false));
+            mBootloader.setVerifyCoverage(Float.parseFloat(sharedPrefs.getString("prefVerifyCoverage", "1")));
+            mBootloader.setFirmwareCache(mFirmwareCache);
+            mBootloader.setManifestDirectory(sharedPrefs.getBoolean("prefFlashManifest", false) ? new File(getActivity().getFilesDir(), "manifests") : null);
+            mBootloader.setManifestSpotCheck(sharedPrefs.getBoolean("prefManifestSpotCheck", true));
             mBootloader.setResetAfterWrite(sharedPrefs.getBoolean("prefResetWrite", true));
+            mBootloader.setAdaptiveFrameGap(sharedPrefs.getBoolean("prefAdaptiveFrameGap", true));
+            mBootloader.setPipelineWindow(sharedPrefs.getBoolean("prefPipelinedWrite", false) ? Bootloader.DEFAULT_PIPELINE_WINDOW : 0);
             mBootloader.setSendBootloaderCommand(sharedPrefs.getString("prefBootloaderCommand", "magic string"));
             mBootloader.setSendInitSequence(sharedPrefs.getBoolean("prefSendInit", true));
             mBootloader.setBootloaderCommand(sharedPrefs.getBoolean("prefSendBootloaderCommand", true));
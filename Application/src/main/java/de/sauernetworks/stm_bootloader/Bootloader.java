@@ -1,17 +1,21 @@
 package de.sauernetworks.stm_bootloader;
 
-import android.content.Context;
-import android.os.Environment;
 import android.os.Handler;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
 
 import de.sauernetworks.stm32_bluetooth_flashloader.Constants;
 import de.sauernetworks.tools.Logger;
@@ -37,16 +41,43 @@ import de.sauernetworks.tools.Logger;
  * Created by Michael Sauer at 02:17 on 05.07.15
  **/
 public class Bootloader {
-    private InputStream mmInStream;
-    private OutputStream mmOutStream;
+    /**
+     * Pages in flight when pipelined WRITE is enabled.
+     */
+    public static final int DEFAULT_PIPELINE_WINDOW = 4;
+    private static final int ACKS_PER_PAGE = 3;
+    private static final long PIPELINE_QUIET_TIME = 50;
+    /**
+     * Retries of a single READ or WRITE transaction before the operation is aborted.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    private static final int SPOT_CHECK_LENGTH = 16; ///< Bytes read back per erase page the manifest says is unchanged
+    private static final long RETRY_BACKOFF = 50; ///< Wait before the first retry in ms, doubled on every further retry
+    private static final long RESYNC_TIMEOUT = 200;
+    private static final long ERASE_PROGRESS_INTERVAL = 250;
+
+    private Transport mTransport;
     private Logger mLog;
-    private Context mContext;
     private Handler mHandler;
     private Devices mDevices;
     private Commands mCommands;
+    private BufferPool mBufferPool;
+    private FrameBuilder mFrameBuilder;
+    private FramePacer mPacer;
+    private TransferStats mStats;
+    private final ByteBuffer[] mFrames = new ByteBuffer[1];
+    private final long[] mReadProgress = new long[2];
+    private final long[] mWriteProgress = new long[4];
+    private final long[] mEraseProgress = new long[2];
+    private final BitSet mErasedPages = new BitSet(); ///< Erase pages known to be blank in this session
+    private byte[] mAckBuffer = new byte[ACKS_PER_PAGE];
+    private boolean mWriteDataSent; ///< The data frame of the last WRITE went out
+    private int mProgressBlocks; ///< Blocks of the ranges of an image before the one being written
+    private long mProgressSize; ///< Bytes of all ranges of an image, 0 when writing a single range
 
     private OnBootloaderEventListener mOnReadMemoryByteListener;
     private OnBootloaderEventListener mOnWriteMemoryByteListener;
+    private OnBootloaderEventListener mOnEraseProgressListener;
 
     private boolean commandRunning;
 
@@ -64,20 +95,39 @@ public class Bootloader {
     private int writeBlockSize;
     private boolean fullRead;
     private boolean preEraseAll;
+    private boolean differentialWrite;
+    private boolean verifyAfterWrite;
+    private float verifyCoverage = 1;
+    private long verifySeed;
+    private File manifestDirectory;
+    private String linkAddress;
+    private boolean manifestSpotCheck = true;
+    private FlashManifest mManifest;
+    private FirmwareCache mFirmwareCache;
     private boolean resetAfterWrite;
     private String bootloaderRunCommand;
     private boolean sendInit;
     private boolean sendBootloaderCommand;
     private int initDelay;
+    private File backupDirectory;
+    private int pipelineWindow;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
 
-    public Bootloader(Context mContext, InputStream mmInStream, OutputStream mmOutStream, Logger mLog, Handler mHandler) {
-        this.mContext = mContext;
-        this.mmInStream = mmInStream;
-        this.mmOutStream = mmOutStream;
+    /**
+     * @param mTransport Link to the STM32 bootloader
+     * @param mLog       Logger for protocol messages
+     * @param mHandler   Optional Handler to share the traffic with the UI, may be null
+     */
+    public Bootloader(Transport mTransport, Logger mLog, Handler mHandler) {
+        this.mTransport = mTransport;
         this.mLog = mLog;
         this.mHandler = mHandler;
         mDevices = new Devices();
         mCommands = new Commands();
+        mBufferPool = new BufferPool();
+        mFrameBuilder = new FrameBuilder(mBufferPool);
+        mPacer = new FramePacer();
+        mStats = new TransferStats(mBufferPool);
         commandRunning = false;
         bootloaderVersion = 0;
         bootloaderCommandCount = 0;
@@ -97,11 +147,20 @@ public class Bootloader {
         mOnWriteMemoryByteListener = listener;
     }
 
+    /**
+     * Listener for the estimated progress of an erase, called with {elapsed ms, estimated ms}.
+     */
+    public void setOnEraseProgressListener(OnBootloaderEventListener listener) {
+        mOnEraseProgressListener = listener;
+    }
+
     public boolean init() throws IOException {
         commandRunning = true;
         byte[] buffer = new byte[1];
         mLog.Log(8, "INIT in Progress!");
-        mmInStream.skip(mmInStream.available());
+        mErasedPages.clear();
+        mManifest = null;
+        mTransport.drain();
         sendByte(Protocol.STM32_INIT);
         int numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
         switch (buffer[0]) {
@@ -141,8 +200,7 @@ public class Bootloader {
         commandRunning = true;
         byte[] buffer = new byte[1];
         mLog.Log(8, "GET Command in Progress!");
-        sendByte(Protocol.STM32_GET_COMMAND);
-        sendByte((byte) (~Protocol.STM32_GET_COMMAND));
+        sendCommand(Protocol.STM32_GET_COMMAND);
         int numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
         switch (buffer[0]) {
             case Protocol.STM32_ACK:
@@ -193,8 +251,7 @@ public class Bootloader {
         byte[] buffer = new byte[1];
         mLog.Log(8, "GVRP Command in Progress!");
         if (bootloaderCommandsRead) { // && mCommands.isActiveCommand(Protocol.STM32_GVRP_COMMAND)) {
-            sendByte(Protocol.STM32_GVRP_COMMAND);
-            sendByte((byte) (~Protocol.STM32_GVRP_COMMAND));
+            sendCommand(Protocol.STM32_GVRP_COMMAND);
             int numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
             switch (buffer[0]) {
                 case Protocol.STM32_ACK:
@@ -208,7 +265,7 @@ public class Bootloader {
                     bootloaderVersion = gvrp[0];
                     bootloaderReadProtection[0] = gvrp[1];
                     bootloaderReadProtection[1] = gvrp[2];
-                    mmInStream.read(buffer);
+                    readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
                     if (buffer[0] == Protocol.STM32_ACK) {
                         mLog.Log(2, "GVRP: Command success!");
                         commandRunning = false;
@@ -242,8 +299,7 @@ public class Bootloader {
         byte[] buffer = new byte[1];
         mLog.Log(8, "GID Command in Progress!");
         if (bootloaderCommandsRead) { // && mCommands.isActiveCommand(Protocol.STM32_GET_ID_COMMAND)) {
-            sendByte(Protocol.STM32_GET_ID_COMMAND);
-            sendByte((byte) (~Protocol.STM32_GET_ID_COMMAND));
+            sendCommand(Protocol.STM32_GET_ID_COMMAND);
             int numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
             switch (buffer[0]) {
                 case Protocol.STM32_ACK:
@@ -307,23 +363,17 @@ public class Bootloader {
         byte[] buffer = new byte[1];
         mLog.Log(8, "GO Command in Progress!");
         if (bootloaderCommandsRead && bootloaderGIDRead) { // && mCommands.isActiveCommand(Protocol.STM32_GET_ID_COMMAND)) {
-            sendByte(Protocol.STM32_GO_COMMAND);
-            sendByte((byte) (~Protocol.STM32_GO_COMMAND));
+            sendCommand(Protocol.STM32_GO_COMMAND);
             int numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
             switch (buffer[0]) {
                 case Protocol.STM32_ACK:
-                    long address = mDevices.getDevice(getBootloaderProductId()).getFlashStart();
+                    Device device = getDevice();
+                    long address = device != null ? device.getFlashStart() : 0;
                     if (address <= 0) {
                         mLog.Log(Constants.ERROR, "GO: Address error. Cant determine flash start!");
                         return false;
                     }
-                    byte[] buf = new byte[5];
-                    buf[0] = (byte) (address >> 24);
-                    buf[1] = (byte) ((address >> 16) & 0xFF);
-                    buf[2] = (byte) ((address >> 8) & 0xFF);
-                    buf[3] = (byte) (address & 0xFF);
-                    buf[4] = (byte) (buf[0] ^ buf[1] ^ buf[2] ^ buf[3]);
-                    write(buf);
+                    sendFrame(mFrameBuilder.address(address));
                     numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
                     if (buffer[0] == Protocol.STM32_ACK) {
                         mLog.Log(4, "GO: Jump command successed!");
@@ -362,19 +412,31 @@ public class Bootloader {
         byte[] buffer = new byte[1];
         mLog.Log(8, "EER Command in Progress!");
         if (bootloaderCommandsRead && bootloaderGIDRead) { // && mCommands.isActiveCommand(Protocol.STM32_GET_ID_COMMAND)) {
-            sendByte(Protocol.STM32_EER_COMMAND);
-            sendByte((byte) (~Protocol.STM32_EER_COMMAND));
+            byte command = getEraseCommand() == Protocol.STM32_ERASE_COMMAND ? Protocol.STM32_ERASE_COMMAND : Protocol.STM32_EER_COMMAND;
+            sendCommand(command);
             readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
             switch (buffer[0]) {
                 case Protocol.STM32_ACK:
-                    byte[] eerBuf = new byte[3];
-                    eerBuf[0] = (byte) 0xFF;
-                    eerBuf[1] = (byte) 0xFF;
-                    eerBuf[2] = (byte) (eerBuf[0] ^ eerBuf[1]);
+                    byte[] eerBuf;
+                    if (command == Protocol.STM32_ERASE_COMMAND) {
+                        // Global erase of the legacy Erase Command
+                        eerBuf = new byte[2];
+                        eerBuf[0] = (byte) 0xFF;
+                        eerBuf[1] = 0x00;
+                    } else {
+                        eerBuf = new byte[3];
+                        eerBuf[0] = (byte) 0xFF;
+                        eerBuf[1] = (byte) 0xFF;
+                        eerBuf[2] = (byte) (eerBuf[0] ^ eerBuf[1]);
+                    }
                     write(eerBuf);
-                    long maxTimeMillis = System.currentTimeMillis() + Protocol.STM32_EER_TIMEOUT;
-                    while (System.currentTimeMillis() < maxTimeMillis && mmInStream.read(buffer) <= 0);
+                    Device device = getDevice();
+                    long estimate = device != null ? device.getMassEraseTime() : Protocol.STM32_EER_TIMEOUT;
+                    long start = System.currentTimeMillis();
+                    buffer[0] = waitForErase(start, estimate, start + getEraseTimeout(estimate));
                     if (buffer[0] == Protocol.STM32_ACK) {
+                        if (device != null)
+                            markErased(0, device.getErasePageCount());
                         mLog.Log(4, "Extended Erase Memory completed!");
                         commandRunning = false;
                         return true;
@@ -406,141 +468,168 @@ public class Bootloader {
         }
     }
 
+    /**
+     * Erase only the flash pages (sectors on F2/F4) touched by length bytes at address.
+     * Uses Extended Erase page lists of at most STM32_EER_MAX_PAGES pages, or Erase page
+     * lists of at most STM32_ERASE_MAX_PAGES pages if the bootloader only offers Erase. Erase
+     * can only address the first STM32_ERASE_PAGE_LIMIT pages.
+     */
+    public boolean eraseMemory(long address, long length) throws IOException {
+        Device device = getDevice();
+        if (device == null || address < device.getFlashStart() || length <= 0 || address + length > device.getFlashEnd()) {
+            mLog.Log(Constants.ERROR, String.format("ERASE: Error! %d bytes at 0x%08x are not in the flash", length, address));
+            return false;
+        }
+        byte command = getEraseCommand();
+        if (command == 0) {
+            mLog.Log(Constants.ERROR, "ERASE: Error! No Erase Command in instruction set!");
+            return false;
+        }
+        int first = device.getErasePage(address);
+        int last = device.getErasePage(address + length - 1);
+        int maxPages = Protocol.STM32_EER_MAX_PAGES;
+        if (command == Protocol.STM32_ERASE_COMMAND) {
+            maxPages = Protocol.STM32_ERASE_MAX_PAGES;
+            if (last >= Protocol.STM32_ERASE_PAGE_LIMIT) {
+                mLog.Log(Constants.ERROR, "ERASE: Error! Page " + last + " cannot be addressed by the Erase Command");
+                return false;
+            }
+        }
+        long estimate = device.getEraseTime(first, last - first + 1);
+        mLog.Log(3, String.format("ERASE: Erasing pages %d to %d of %d for %d bytes at 0x%08x (%s), estimated %d ms", first, last,
+                device.getErasePageCount(), length, address, mCommands.getCommandName(command), estimate));
+        long start = System.currentTimeMillis();
+        for (int page = first; page <= last; page += maxPages) {
+            int count = Math.min(maxPages, last - page + 1);
+            if (!erasePages(command, page, count, start, estimate, device.getEraseTime(page, count)))
+                return false;
+            markErased(page, count);
+        }
+        mLog.Log(4, "ERASE: " + (last - first + 1) + " pages erased in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Erase variant offered by the bootloader in its GET answer, Extended Erase if both are listed.
+     *
+     * @return STM32_EER_COMMAND, STM32_ERASE_COMMAND or 0 if none of them is supported
+     */
+    public byte getEraseCommand() {
+        if (!bootloaderCommandsRead)
+            return 0;
+        if (mCommands.isActiveCommand(Protocol.STM32_EER_COMMAND))
+            return Protocol.STM32_EER_COMMAND;
+        if (mCommands.isActiveCommand(Protocol.STM32_ERASE_COMMAND))
+            return Protocol.STM32_ERASE_COMMAND;
+        return 0;
+    }
+
+    /**
+     * @param startMillis    start of the whole erase, for the progress
+     * @param estimateMillis estimated time of the whole erase
+     * @param batchMillis    estimated time of this page list
+     */
+    private boolean erasePages(byte command, int first, int count, long startMillis, long estimateMillis, long batchMillis) throws IOException {
+        commandRunning = true;
+        sendCommand(command);
+        byte answer = readAnswer(Protocol.STM32_READ_TIMEOUT);
+        if (answer != Protocol.STM32_ACK) {
+            mLog.Log(Constants.ERROR, "ERASE: No valid byte received! (" + String.format("0x%02x", answer) + ")");
+            commandRunning = false;
+            return false;
+        }
+        if (command == Protocol.STM32_EER_COMMAND)
+            sendFrame(mFrameBuilder.extendedErasePages(first, count));
+        else
+            sendFrame(mFrameBuilder.erasePages(first, count));
+        answer = waitForErase(startMillis, estimateMillis, System.currentTimeMillis() + getEraseTimeout(batchMillis));
+        commandRunning = false;
+        if (answer != Protocol.STM32_ACK) {
+            mLog.Log(Constants.ERROR, "ERASE: Erase of pages " + first + " to " + (first + count - 1) + " failed! (" + String.format("0x%02x", answer) + ")");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the answer to an erase without polling the link. The wait is split
+     * into slices, after each one the estimated progress is reported to the
+     * erase listener as {elapsed ms, estimated ms}.
+     *
+     * @return the answer, 0 if none arrived before deadlineMillis
+     */
+    private byte waitForErase(long startMillis, long estimateMillis, long deadlineMillis) throws IOException {
+        long[] progress = mEraseProgress;
+        progress[1] = estimateMillis;
+        mAckBuffer[0] = 0;
+        long now;
+        while ((now = System.currentTimeMillis()) < deadlineMillis) {
+            if (mTransport.read(mAckBuffer, 0, 1, Math.min(ERASE_PROGRESS_INTERVAL, deadlineMillis - now)) > 0) {
+                notifyHandler(Constants.MESSAGE_READ, 1, mAckBuffer);
+                break;
+            }
+            progress[0] = System.currentTimeMillis() - startMillis;
+            if (mOnEraseProgressListener != null)
+                mOnEraseProgressListener.onByte(progress);
+        }
+        return mAckBuffer[0];
+    }
+
+    /**
+     * Deadline for an erase estimated to take estimateMillis, with a margin for slow parts and the link.
+     */
+    private static long getEraseTimeout(long estimateMillis) {
+        return estimateMillis * 3 / 2 + Protocol.STM32_READ_TIMEOUT;
+    }
+
     public boolean writeMemory(String path) throws IOException {
+        File file = new File(path);
+        FirmwareCache.Entry cached = mFirmwareCache != null ? mFirmwareCache.get(file) : null;
+        if (cached != null)
+            mLog.Log(4, "WRITE: Firmware file " + path + " taken from the cache (" + cached.getContentHash() + ")");
+        if (FirmwareImage.isSparseFormat(path)) {
+            if (cached == null) {
+                try {
+                    FirmwareImage image = FirmwareImage.load(file);
+                    cached = mFirmwareCache != null ? mFirmwareCache.put(file, image) : null;
+                    if (cached == null)
+                        return writeImage(image, null);
+                } catch (IOException e) {
+                    mLog.Log(Constants.ERROR, "WRITE: Cannot load firmware file " + path + " (" + e.getMessage() + ")");
+                    return false;
+                }
+            }
+            return writeImage(cached.getImage(), cached);
+        }
         commandRunning = true;
-        byte[] buffer = new byte[1];
-        boolean error = false;
         mLog.Log("WRITE Command in Progress!");
         if (bootloaderCommandsRead && bootloaderGIDRead) { //TODO command in active  cmds
-            long address = mDevices.getDevice(getBootloaderProductId()).getFlashStart();
+            Device device = getDevice();
+            long address = device != null ? device.getFlashStart() : 0;
             if (address <= 0) {
                 mLog.Log(Constants.ERROR, "WRITE: Error. Cannot determine flash start address");
+                commandRunning = false;
                 return false;
             }
-            BufferedInputStream firmwareBuf;
-            long[] errBuff = new long[3];
-            //String path = mContext.getFilesDir().toString() + "/" + Constants.FIRMWARE_FILENAME;
-            //String filepath = path + "_1_4_build804" + Constants.FIRMWARE_EXTENSION;
-            /*String filepath = path + Constants.FIRMWARE_EXTENSION;
-            if (firmware_filename.length() > 0)
-                filepath = firmware_filename;*/
-            File file = new File(path);
+            mStats.reset();
             long size = file.length();
-            errBuff[2] = size;
             mLog.Log(String.format("WRITE: Firmware File %s with Size: %d bytes", file.getCanonicalPath(), size));
             //mHandler.obtainMessage(Constants.MESSAGE_WRITE_START, 1, -1, size).sendToTarget();
-            int firmwareOffset = 0;
-            byte firmwareChecksum;
-            //int firmwareSize = (int) file.length();
-            //byte[] firmwareData = new byte[firmwareSize];
-            byte[] firmwareData = new byte[Protocol.STM32_BYTE_COUNT];
-            try {
-                firmwareBuf = new BufferedInputStream(new FileInputStream(file));
-            } catch (FileNotFoundException e) {
+            ByteBuffer firmware = cached != null ? cached.getBinary() : loadFirmware(file);
+            if (firmware != null && cached == null && mFirmwareCache != null)
+                cached = mFirmwareCache.put(file, firmware);
+            if (firmware == null) {
                 mLog.Log("WRITE: Cannot find/read firmware file (" + path + ")");
                 //mHandler.obtainMessage(Constants.MESSAGE_WRITE_MEMORY_FILE_ERROR).sendToTarget();
-                e.printStackTrace();
+                commandRunning = false;
                 return false;
             }
-            for (int page = 0; page < Protocol.STM32_PAGE_COUNT; page++) {
-                if (firmwareBuf.available() <= 0) {
-                    mLog.Log(3, "WRITE: File completely written");
-                    break;
-                }
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                sendByte(Protocol.STM32_WRITE_COMMAND);
-                sendByte((byte) (~Protocol.STM32_WRITE_COMMAND));
-                readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
-                switch (buffer[0]) {
-                    case Protocol.STM32_ACK:
-                        byte[] buf = new byte[5];
-                        buf[0] = (byte) (address >> 24);
-                        buf[1] = (byte) ((address >> 16) & 0xFF);
-                        buf[2] = (byte) ((address >> 8) & 0xFF);
-                        buf[3] = (byte) (address & 0xFF);
-                        buf[4] = (byte) (buf[0] ^ buf[1] ^ buf[2] ^ buf[3]);
-                        write(buf);
-                        readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
-                        address += Protocol.STM32_BYTE_COUNT;
-                        if (buffer[0] == Protocol.STM32_ACK) {
-                            long[] dataBuf = new long[4];
-                            dataBuf[3] = size;
-                            dataBuf[0] = page;
-                            int countData = firmwareBuf.read(firmwareData, 0, firmwareData.length);
-                            sendByte((byte) (Protocol.STM32_BYTE_COUNT - 1)); // write 256 bytes
-                            firmwareChecksum = (byte) (Protocol.STM32_BYTE_COUNT - 1);
-                            if (countData < firmwareData.length) {
-                                mLog.Log(7, "WRITE: File at end! Filling with 0xff");
-                                for (int i = countData; i < firmwareData.length; i++)
-                                    firmwareData[i] = (byte) 0xFF;
-                                page = Protocol.STM32_PAGE_COUNT;
-                            } else if (countData == -1) {
-                                error = true;
-                                mLog.Log(Constants.ERROR, "WRITE: File read Error on Write PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", buffer[0]) + "]");
-                                errBuff[0] = page;
-                                errBuff[1] = countData;
-                                if (firmwareBuf != null)
-                                    firmwareBuf.close();
-                                break;
-                            }
-
-                            //
-                            for (int i = 0; i < firmwareData.length; i++) {
-                                firmwareChecksum = (byte) (firmwareChecksum ^ firmwareData[i]);
-                                dataBuf[1] = i;
-                            }
-                            write(firmwareData);
-                            sendByte(firmwareChecksum);
-                            readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
-                            if (buffer[0] == Protocol.STM32_ACK) {
-                                //mLog.LogF("WRITE: Written Offset " + String.valueOf(firmwareOffset) + " successfully");
-                            } else {
-                                error = true;
-                                mLog.Log(Constants.ERROR, String.format("WRITE: Error on Writing Offset %d [0x%02x]", firmwareOffset, buffer[0]));
-                                errBuff[0] = page;
-                                errBuff[1] = countData;
-                                mHandler.obtainMessage(Constants.MESSAGE_WRITE_MEMORY_FAILED, errBuff.length, -1, errBuff).sendToTarget();
-                                if (firmwareBuf != null)
-                                    firmwareBuf.close();
-                                break;
-                            }
-
-                            if (mOnWriteMemoryByteListener != null)
-                                mOnWriteMemoryByteListener.onByte(dataBuf);
-                            firmwareOffset += firmwareData.length;
-                        } else {
-                            error = true;
-                            mLog.Log(Constants.ERROR, "WRITE: Address Error on Write PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", buffer[0]) + "]");
-                            errBuff[0] = page;
-                            errBuff[1] = -1;
-                            if (firmwareBuf != null)
-                                firmwareBuf.close();
-                            break;
-                        }
-                        break;
-                    default:
-                        error = true;
-                        mLog.Log(Constants.ERROR, "WRITE: Command Error on Write PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", buffer[0]) + "]");
-                        errBuff[0] = page;
-                        errBuff[1] = -1;
-                        if (firmwareBuf != null)
-                            firmwareBuf.close();
-                        break;
-                }
-            }
-            if (firmwareBuf != null)
-                firmwareBuf.close();
-            commandRunning = false;
-            if (!error) {
-                mLog.Log(3, "WRITE: Command success!");
-                return true;
-            } else {
+            if (firmware.limit() > getFlashSize()) {
+                mLog.Log(Constants.ERROR, "WRITE: Firmware (" + firmware.limit() + " bytes) does not fit into flash (" + getFlashSize() + " bytes)");
+                commandRunning = false;
                 return false;
             }
+            return writeFirmware(address, firmware, cached);
         } else {
             if (bootloaderCommandsRead)
                 mLog.Log(Constants.ERROR, "WRITE: Error! GET Command not completed!");
@@ -551,84 +640,859 @@ public class Bootloader {
         }
     }
 
+    /**
+     * Write the segments of a sparse image at their addresses, the gaps between them are not sent.
+     * Segments sharing a 4 byte word are written together with 0xFF in between. When erase pages
+     * get erased, segments sharing an erase page are written together too, so erasing the pages
+     * of one segment cannot wipe another one. The 0xFF blocks in between are on erased flash then
+     * and not sent.
+     */
+    public boolean writeImage(FirmwareImage image) throws IOException {
+        return writeImage(image, null);
+    }
+
+    private boolean writeImage(FirmwareImage image, FirmwareCache.Entry cached) throws IOException {
+        commandRunning = true;
+        mLog.Log("WRITE Command in Progress!");
+        Device device = getDevice();
+        if (!bootloaderCommandsRead || !bootloaderGIDRead || device == null) {
+            mLog.Log(Constants.ERROR, "WRITE: Error! GET Command not completed!");
+            commandRunning = false;
+            return false;
+        }
+        mLog.Log("WRITE: Firmware image with " + image);
+        SortedMap<Long, byte[]> segments = image.getSegments();
+        List<long[]> ranges = new ArrayList<long[]>();
+        boolean erase = preEraseAll || differentialWrite;
+        for (Map.Entry<Long, byte[]> segment : segments.entrySet()) {
+            long from = segment.getKey() & ~3L;
+            long to = segment.getKey() + segment.getValue().length;
+            if (!isFlash(from, to - from) && !isRam(from, to - from)) {
+                mLog.Log(Constants.ERROR, String.format("WRITE: Segment 0x%08x to 0x%08x is not in the flash or RAM of the device", segment.getKey(), to));
+                commandRunning = false;
+                return false;
+            }
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && (from < last[1] || (erase && isFlash(from, 1) && isFlash(last[1] - 1, 1)
+                    && device.getErasePage(from) == device.getErasePage(last[1] - 1))))
+                last[1] = to;
+            else
+                ranges.add(new long[]{from, to});
+        }
+        mStats.reset();
+        mProgressSize = 0;
+        for (long[] range : ranges)
+            mProgressSize += range[1] - range[0];
+        try {
+            for (long[] range : ranges) {
+                byte[] data = new byte[(int) (range[1] - range[0])];
+                Arrays.fill(data, (byte) 0xFF);
+                for (Map.Entry<Long, byte[]> segment : segments.subMap(range[0], range[1]).entrySet())
+                    System.arraycopy(segment.getValue(), 0, data, (int) (segment.getKey() - range[0]), segment.getValue().length);
+                mLog.Log(4, String.format("WRITE: Writing %d bytes at 0x%08x", data.length, range[0]));
+                if (!writeFirmware(range[0], ByteBuffer.wrap(data), cached))
+                    return false;
+                mProgressBlocks += (data.length + getWriteBlockSize() - 1) / getWriteBlockSize();
+            }
+        } finally {
+            mProgressBlocks = 0;
+            mProgressSize = 0;
+        }
+        commandRunning = false;
+        return true;
+    }
+
+    /**
+     * Write the remaining bytes of src to address and advance its position, f.e. to patch a block
+     * of the flash or to load code into RAM. The address has to be 4 byte aligned. When erase pages
+     * of the flash have to be erased first, the bytes around the range are read back and written
+     * again with it.
+     */
+    public boolean write(long address, ByteBuffer src) throws IOException {
+        commandRunning = true;
+        mLog.Log("WRITE Command in Progress!");
+        if (!bootloaderCommandsRead || !bootloaderGIDRead) {
+            mLog.Log(Constants.ERROR, "WRITE: Error! GET Command not completed!");
+            commandRunning = false;
+            return false;
+        }
+        if ((address & 3) != 0) {
+            mLog.Log(Constants.ERROR, String.format("WRITE: Address 0x%08x is not 4 byte aligned", address));
+            commandRunning = false;
+            return false;
+        }
+        mStats.reset();
+        byte[] data = new byte[src.remaining()];
+        src.get(data);
+        Device device = getDevice();
+        if (data.length > 0 && isFlash(address, data.length) && (preEraseAll || differentialWrite)) {
+            long start = device.getErasePageStart(device.getErasePage(address));
+            long end = device.getErasePageStart(device.getErasePage(address + data.length - 1) + 1);
+            if (start < address || end > address + data.length) {
+                byte[] pages = new byte[(int) (end - start)];
+                ByteBuffer buffer = ByteBuffer.wrap(pages);
+                buffer.limit((int) (address - start));
+                if (!readRange(start, buffer.remaining(), buffer)) {
+                    commandRunning = false;
+                    return false;
+                }
+                buffer.limit(pages.length);
+                buffer.put(data);
+                if (!readRange(address + data.length, buffer.remaining(), buffer)) {
+                    commandRunning = false;
+                    return false;
+                }
+                mLog.Log(4, String.format("WRITE: Keeping %d bytes around 0x%08x of the erase pages", pages.length - data.length, address));
+                address = start;
+                data = pages;
+            }
+        }
+        return writeFirmware(address, ByteBuffer.wrap(data), null);
+    }
+
+    /**
+     * Erase and write the firmware at address as configured, then verify it and update the manifest.
+     *
+     * @param cached cache entry of the firmware file to keep derived data in, null if it is not cached
+     */
+    private boolean writeFirmware(long address, ByteBuffer firmware, FirmwareCache.Entry cached) throws IOException {
+        boolean flash = firmware.limit() > 0 && isFlash(address, firmware.limit());
+        BitSet unchanged = null;
+        long readMillis = 0;
+        FlashManifest manifest = flash ? getManifest() : null;
+        String[] hashes = manifest != null ? getPageHashes(cached, address, firmware) : null;
+        if ((differentialWrite || manifest != null) && flash) {
+            unchanged = new BitSet();
+            long readStart = System.currentTimeMillis();
+            if ((manifest != null && !findRecordedPages(manifest, hashes, address, firmware, unchanged))
+                    || (differentialWrite && !readUnchangedPages(address, firmware, unchanged))) {
+                commandRunning = false;
+                return false;
+            }
+            readMillis = System.currentTimeMillis() - readStart;
+            keepWholeBlocks(address, firmware.limit(), unchanged);
+            if ((differentialWrite || preEraseAll) && !eraseChangedPages(address, firmware.limit(), unchanged)) {
+                commandRunning = false;
+                return false;
+            }
+            if (manifest != null)
+                updateManifest(manifest, hashes, address, firmware, unchanged, false);
+        } else if (preEraseAll && flash && !eraseMemory(address, firmware.limit())) {
+            commandRunning = false;
+            return false;
+        }
+        commandRunning = true;
+        long writeStart = System.currentTimeMillis();
+        boolean error = !writePages(address, firmware, firmware.limit(), unchanged, cached);
+        long writeMillis = System.currentTimeMillis() - writeStart;
+        commandRunning = false;
+        mStats.finish();
+        if (verifyAfterWrite && !error)
+            error = !verifyPages(address, firmware);
+        if (manifest != null && !error)
+            updateManifest(manifest, hashes, address, firmware, unchanged, true);
+        if (unchanged != null && !error)
+            logSkippedPages(address, firmware.limit(), unchanged, readMillis, writeMillis);
+        mLog.Log(4, "WRITE: " + mStats);
+        mLog.Log(4, "WRITE: " + mStats.getIdleMillisSaved() + " ms idle time saved compared to a fixed " + FramePacer.LEGACY_PAGE_DELAY + " ms page delay");
+        if (!error) {
+            mLog.Log(3, "WRITE: Command success!");
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Map the complete firmware file read-only, blocks are sent straight out of the mapping and
+     * can be sent again without reading the file. If the file cannot be mapped it is read onto the heap.
+     */
+    private ByteBuffer loadFirmware(File file) {
+        FileInputStream firmwareStream = null;
+        try {
+            firmwareStream = new FileInputStream(file);
+            FileChannel channel = firmwareStream.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return null;
+            try {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException e) {
+                mLog.Log(Constants.DEBUG, "WRITE: Cannot map firmware file, reading it (" + e.getMessage() + ")");
+            }
+            ByteBuffer firmware = ByteBuffer.allocate((int) size);
+            while (firmware.hasRemaining()) {
+                if (channel.read(firmware) < 0)
+                    return null;
+            }
+            firmware.flip();
+            return firmware;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (firmwareStream != null) {
+                try {
+                    firmwareStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write size bytes of firmware to the flash at address in blocks of writeBlockSize.
+     * If a pipeline window is set the pages are pipelined first, on the first error the
+     * rest is written with stop-and-wait. The frames are taken from the transmission plan.
+     */
+    private boolean writePages(long address, ByteBuffer firmware, int size, BitSet unchanged, FirmwareCache.Entry cached) throws IOException {
+        int block = getWriteBlockSize();
+        TransmissionPlan plan = getTransmissionPlan(cached, address, firmware);
+        if (plan == null)
+            return false;
+        int pages = (size + block - 1) / block;
+        // Blocks of 0xFF on flash erased in this session are already programmed,
+        // blocks on erase pages which already hold the firmware are left alone
+        int[] blocks = new int[pages];
+        int count = 0;
+        int kept = 0;
+        for (int page = 0; page < pages; page++) {
+            long pageAddress = address + (long) page * block;
+            if (unchanged != null && isUnchanged(unchanged, pageAddress, block))
+                kept++;
+            else if (!isBlank(firmware, size, page * block, block) || !isErased(pageAddress, block))
+                blocks[count++] = page;
+        }
+        int skipped = pages - count - kept;
+        ByteBuffer view = plan.view();
+        long start = System.currentTimeMillis();
+        try {
+            int next = 0;
+            int inFlight = 0;
+            if (pipelineWindow > 1) {
+                next = writePagesPipelined(plan, view, size, blocks, count);
+                if (next < count) {
+                    mLog.Log(3, "WRITE: Pipeline stopped at PAGE " + blocks[next] + ", continuing with stop-and-wait");
+                    mStats.addRetry();
+                    if (!resync())
+                        return writeFailed(address + (long) blocks[next] * block, blocks[next], -1, size);
+                    inFlight = Math.min(pipelineWindow, count - next);
+                }
+            }
+            for (; next < count; next++) {
+                int page = blocks[next];
+                // A block whose data frame went out may be programmed although its ACK is missing
+                boolean sent = inFlight-- > 0;
+                for (int attempt = 0; !(sent && isWritten(address, firmware, size, page)) && !writePage(plan, view, page, size); attempt++) {
+                    if (!retry("WRITE", page, attempt))
+                        return writeFailed(address + (long) page * block, page, -1, size);
+                    sent = mWriteDataSent;
+                }
+            }
+            mLog.Log(3, "WRITE: File completely written");
+            if (skipped > 0) {
+                long bytesSaved = (long) skipped * (block + 9); // command, address and data frame
+                long millisSaved = count > 0 ? skipped * (System.currentTimeMillis() - start) / count : 0;
+                mStats.addSkipped(skipped, bytesSaved);
+                mLog.Log(4, "WRITE: Skipped " + skipped + " blocks of 0xFF on erased flash, " + bytesSaved + " bytes and about " + millisSaved + " ms saved");
+            }
+            if (kept > 0)
+                mStats.addSkipped(kept, (long) kept * (block + 9));
+            return true;
+        } finally {
+            for (int i = 0; i < count; i++)
+                markWritten(address + (long) blocks[i] * block, block);
+        }
+    }
+
+    /**
+     * Read back a block of the flash before its WRITE is sent again. Programming flash which is
+     * not erased fails on F0, F1 and F3 parts (PGERR), even with the same value, so a block which
+     * was programmed but whose ACK got lost would be answered with NACK on every retry.
+     *
+     * @return true if the block already holds the firmware, it is counted as written then
+     */
+    private boolean isWritten(long address, ByteBuffer firmware, int size, int page) throws IOException {
+        int block = getWriteBlockSize();
+        long from = address + (long) page * block;
+        long to = Math.min(address + size, from + block);
+        if (!isFlash(from, to - from) || compareFlash(address, firmware, from, to, page) <= 0)
+            return false;
+        mLog.Log(3, "WRITE: PAGE " + page + " is already written, only its ACK got lost");
+        pageWritten(page, size);
+        return true;
+    }
+
+    /**
+     * The transmission plan of the firmware at address for the write block size, compiled once
+     * per cached firmware file and reused for every target it is written to.
+     *
+     * @return the plan, null if the firmware does not fit the device
+     */
+    private TransmissionPlan getTransmissionPlan(FirmwareCache.Entry cached, long address, ByteBuffer firmware) {
+        int block = getWriteBlockSize();
+        String layout = Long.toHexString(address) + "/" + block;
+        TransmissionPlan plan = cached != null ? cached.getPlan(layout) : null;
+        if (plan != null && plan.getSize() == firmware.remaining())
+            return plan;
+        try {
+            long start = System.currentTimeMillis();
+            plan = TransmissionPlan.compile(address, firmware, block, getDevice());
+            mLog.Log(Constants.DEBUG, "WRITE: Compiled " + plan.getBlockCount() + " blocks into " + plan.getLength() + " bytes of frames in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IllegalArgumentException e) {
+            mLog.Log(Constants.ERROR, "WRITE: " + e.getMessage());
+            return null;
+        }
+        if (cached != null)
+            cached.putPlan(layout, plan);
+        return plan;
+    }
+
+    /**
+     * True if the block of the firmware at offset only contains 0xFF, the padding behind the end counts as 0xFF.
+     */
+    private static boolean isBlank(ByteBuffer firmware, int size, int offset, int block) {
+        int end = Math.min(size, offset + block);
+        for (int i = offset; i < end; i++) {
+            if (firmware.get(i) != (byte) 0xFF)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * True if all pages under length bytes at address were erased in this session and not written since.
+     */
+    private boolean isErased(long address, int length) {
+        Device device = getDevice();
+        if (device == null || !isFlash(address, length))
+            return false;
+        int first = device.getErasePage(address);
+        int last = device.getErasePage(address + length - 1);
+        return mErasedPages.nextClearBit(first) > last;
+    }
+
+    /**
+     * True if all erase pages under length bytes at address already hold the firmware.
+     */
+    private boolean isUnchanged(BitSet unchanged, long address, int length) {
+        Device device = getDevice();
+        int first = device.getErasePage(address);
+        int last = device.getErasePage(address + length - 1);
+        return unchanged.nextClearBit(first) > last;
+    }
+
+    /**
+     * Read back the erase pages under the firmware which are not yet known to be unchanged and
+     * add the ones which already hold the firmware to unchanged.
+     *
+     * @return false if the flash could not be read
+     */
+    private boolean readUnchangedPages(long address, ByteBuffer firmware, BitSet unchanged) throws IOException {
+        Device device = getDevice();
+        long end = address + firmware.limit();
+        int first = device.getErasePage(address);
+        int last = device.getErasePage(end - 1);
+        int known = unchanged.cardinality();
+        long bytesRead = 0;
+        for (int page = unchanged.nextClearBit(first); page <= last; page = unchanged.nextClearBit(page + 1)) {
+            long from = Math.max(address, device.getErasePageStart(page));
+            long to = Math.min(end, device.getErasePageStart(page + 1));
+            long read = compareFlash(address, firmware, from, to, page);
+            if (read == 0)
+                return false;
+            bytesRead += Math.abs(read);
+            if (read > 0)
+                unchanged.set(page);
+        }
+        mLog.Log(4, "WRITE: Read back " + bytesRead + " bytes, " + (unchanged.cardinality() - known) + " of " + (last - first + 1 - known) + " erase pages already hold the firmware");
+        return true;
+    }
+
+    /**
+     * Compare the flash from up to to with the firmware which starts at address. Reading stops at the first difference.
+     *
+     * @return bytes compared, negated if the flash differs (the last byte compared is the first difference), 0 if it could not be read
+     */
+    private long compareFlash(long address, ByteBuffer firmware, long from, long to, int page) throws IOException {
+        ByteBuffer readPage = mBufferPool.acquire(getReadBlockSize());
+        byte[] data = readPage.array();
+        long bytesRead = 0;
+        try {
+            while (from < to) {
+                int len = (int) Math.min(getReadBlockSize(), to - from);
+                if (!readPageWithRetry(from, page, data, len))
+                    return 0;
+                int offset = (int) (from - address);
+                for (int i = 0; i < len; i++) {
+                    if (data[i] != firmware.get(offset + i))
+                        return -(bytesRead + i + 1);
+                }
+                bytesRead += len;
+                from += len;
+            }
+            return bytesRead;
+        } finally {
+            mBufferPool.release(readPage);
+        }
+    }
+
+    /**
+     * Read back the flash under the firmware and compare it with the firmware in memory, either
+     * completely or a sample of the write blocks. The first mismatch is reported as a failed write
+     * of its block.
+     */
+    private boolean verifyPages(long address, ByteBuffer firmware) throws IOException {
+        Device device = getDevice();
+        int block = getWriteBlockSize();
+        int blocks = (firmware.limit() + block - 1) / block;
+        long seed = verifySeed != 0 ? verifySeed : System.nanoTime();
+        BitSet sample = selectVerifyBlocks(blocks, seed);
+        if (sample.cardinality() < blocks)
+            mLog.Log(4, String.format("VERIFY: Sampling %d of %d blocks, seed %d", sample.cardinality(), blocks, seed));
+        long start = System.currentTimeMillis();
+        long bytesVerified = 0;
+        for (int page = sample.nextSetBit(0); page >= 0; page = sample.nextSetBit(page + 1)) {
+            long from = address + (long) page * block;
+            long to = Math.min(address + firmware.limit(), from + block);
+            long read = compareFlash(address, firmware, from, to, page);
+            if (read == 0) {
+                mLog.Log(Constants.ERROR, "VERIFY: Cannot read back PAGE " + page);
+                return writeFailed(from, page, -1, firmware.limit());
+            }
+            if (read < 0) {
+                long mismatch = from - read - 1;
+                int offset = (int) (mismatch - address);
+                mLog.Log(Constants.ERROR, String.format("VERIFY: Mismatch at 0x%08x in PAGE %d (erase page %d), expected 0x%02x",
+                        mismatch, page, device.getErasePage(mismatch), firmware.get(offset)));
+                return writeFailed(mismatch, page, offset % block, firmware.limit());
+            }
+            bytesVerified += read;
+        }
+        mLog.Log(4, "VERIFY: " + bytesVerified + " of " + firmware.limit() + " bytes verified in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Write blocks to verify: all of them at full coverage, otherwise the first block (vector table),
+     * the last block and one block chosen by the seeded random generator out of every stratum of the rest.
+     */
+    private BitSet selectVerifyBlocks(int blocks, long seed) {
+        BitSet sample = new BitSet(blocks);
+        int count = (int) Math.ceil(blocks * verifyCoverage);
+        if (count >= blocks) {
+            sample.set(0, blocks);
+            return sample;
+        }
+        sample.set(0);
+        sample.set(blocks - 1);
+        int rest = blocks - 2;
+        int strata = Math.min(rest, count - 2);
+        Random random = new Random(seed);
+        for (int i = 0; i < strata; i++) {
+            int low = 1 + (int) ((long) rest * i / strata);
+            int high = 1 + (int) ((long) rest * (i + 1) / strata);
+            sample.set(low + random.nextInt(high - low));
+        }
+        return sample;
+    }
+
+    /**
+     * A WRITE block spanning several erase pages is sent as a whole, so none of them may be kept if one changed.
+     */
+    private void keepWholeBlocks(long address, int length, BitSet unchanged) {
+        Device device = getDevice();
+        long end = address + length;
+        int block = getWriteBlockSize();
+        for (long blockAddress = address; blockAddress < end; blockAddress += block) {
+            int firstPage = device.getErasePage(blockAddress);
+            int lastPage = device.getErasePage(Math.min(end, blockAddress + block) - 1);
+            if (firstPage != lastPage && unchanged.nextClearBit(firstPage) <= lastPage)
+                unchanged.clear(firstPage, lastPage + 1);
+        }
+    }
+
+    /**
+     * Add the erase pages under the firmware to unchanged which the manifest says were last written
+     * with the same content. With the spot check the start of every such page is read back as well.
+     *
+     * @return false if the flash could not be read
+     */
+    private boolean findRecordedPages(FlashManifest manifest, String[] hashes, long address, ByteBuffer firmware, BitSet unchanged) throws IOException {
+        Device device = getDevice();
+        long end = address + firmware.limit();
+        int first = device.getErasePage(address);
+        int last = device.getErasePage(end - 1);
+        long oldest = Long.MAX_VALUE;
+        int stale = 0;
+        for (int page = first; page <= last; page++) {
+            long from = Math.max(address, device.getErasePageStart(page));
+            long to = Math.min(end, device.getErasePageStart(page + 1));
+            if (!manifest.matches(page, hashes[page - first]))
+                continue;
+            if (manifestSpotCheck) {
+                long read = compareFlash(address, firmware, from, Math.min(to, from + SPOT_CHECK_LENGTH), page);
+                if (read == 0)
+                    return false;
+                if (read < 0) {
+                    stale++;
+                    continue;
+                }
+            }
+            unchanged.set(page);
+            oldest = Math.min(oldest, manifest.getTime(page));
+        }
+        mLog.Log(4, "WRITE: Manifest: " + unchanged.cardinality() + " of " + (last - first + 1) + " erase pages unchanged since the last write"
+                + (unchanged.isEmpty() ? "" : String.format(" (oldest from %tF %<tT)", oldest))
+                + (stale > 0 ? ", " + stale + " failed the spot check" : ""));
+        return true;
+    }
+
+    /**
+     * Hash of the firmware range in every erase page under it, from the first page on. They are
+     * kept in the cache entry, so a cached firmware is hashed once per device type and address.
+     */
+    private String[] getPageHashes(FirmwareCache.Entry cached, long address, ByteBuffer firmware) {
+        Device device = getDevice();
+        String layout = device.getDeviceID() + "@" + Long.toHexString(address);
+        String[] hashes = cached != null ? cached.getPageHashes(layout) : null;
+        if (hashes != null)
+            return hashes;
+        long end = address + firmware.limit();
+        int first = device.getErasePage(address);
+        int last = device.getErasePage(end - 1);
+        hashes = new String[last - first + 1];
+        for (int page = first; page <= last; page++) {
+            long from = Math.max(address, device.getErasePageStart(page));
+            long to = Math.min(end, device.getErasePageStart(page + 1));
+            hashes[page - first] = FlashManifest.hash(from, firmware, (int) (from - address), (int) (to - from));
+        }
+        if (cached != null)
+            cached.putPageHashes(layout, hashes);
+        return hashes;
+    }
+
+    /**
+     * Before writing forget the erase pages under the firmware which are going to change, afterwards record all of them.
+     */
+    private void updateManifest(FlashManifest manifest, String[] hashes, long address, ByteBuffer firmware, BitSet unchanged, boolean written) {
+        Device device = getDevice();
+        int first = device.getErasePage(address);
+        int last = device.getErasePage(address + firmware.limit() - 1);
+        long now = System.currentTimeMillis();
+        for (int page = first; page <= last; page++) {
+            if (written)
+                manifest.put(page, hashes[page - first], now);
+            else if (!unchanged.get(page))
+                manifest.clear(page, 1);
+        }
+        saveManifest(manifest);
+    }
+
+    private void saveManifest(FlashManifest manifest) {
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            mLog.Log(Constants.ERROR, "WRITE: Cannot save flash manifest " + manifest.getFile() + " (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * True if length bytes at address are completely inside the flash of the detected target.
+     */
+    private boolean isFlash(long address, long length) {
+        Device device = getDevice();
+        return device != null && address >= device.getFlashStart() && address + length <= device.getFlashEnd();
+    }
+
+    private boolean isRam(long address, long length) {
+        Device device = getDevice();
+        return device != null && address >= device.getRamStart() && address + length <= device.getRamEnd();
+    }
+
+    /**
+     * Manifest of the connected target, null if none is kept or the target is not identified yet.
+     */
+    private FlashManifest getManifest() {
+        if (mManifest == null && manifestDirectory != null && linkAddress != null && bootloaderGIDRead) {
+            try {
+                mManifest = FlashManifest.load(manifestDirectory, linkAddress, getBootloaderProductId());
+            } catch (IOException e) {
+                mLog.Log(Constants.ERROR, "Cannot load flash manifest (" + e.getMessage() + ")");
+            }
+        }
+        return mManifest;
+    }
+
+    /**
+     * Erase the runs of erase pages under the firmware which differ from it.
+     */
+    private boolean eraseChangedPages(long address, int length, BitSet unchanged) throws IOException {
+        Device device = getDevice();
+        int last = device.getErasePage(address + length - 1);
+        int page = unchanged.nextClearBit(device.getErasePage(address));
+        while (page <= last) {
+            int next = Math.min(unchanged.nextSetBit(page) < 0 ? last + 1 : unchanged.nextSetBit(page), last + 1);
+            long start = device.getErasePageStart(page);
+            if (!eraseMemory(start, device.getErasePageStart(next) - start))
+                return false;
+            page = unchanged.nextClearBit(next);
+        }
+        return true;
+    }
+
+    /**
+     * Compare skipping unchanged erase pages with erasing and writing every page under the firmware. The write
+     * time of the kept blocks is estimated from the blocks written, or from the readback if none were.
+     */
+    private void logSkippedPages(long address, int length, BitSet unchanged, long readMillis, long writeMillis) {
+        Device device = getDevice();
+        int first = device.getErasePage(address);
+        int last = device.getErasePage(address + length - 1);
+        int kept = 0;
+        long eraseSaved = 0;
+        for (int page = unchanged.nextSetBit(first); page >= 0 && page <= last; page = unchanged.nextSetBit(page + 1)) {
+            kept++;
+            eraseSaved += device.getEraseTime(page, 1);
+        }
+        int block = getWriteBlockSize();
+        int blocks = (length + block - 1) / block;
+        int written = mStats.getPages();
+        long millisPerBlock = written > 0 ? writeMillis / written : readMillis / Math.max(1, (length + getReadBlockSize() - 1) / getReadBlockSize());
+        long fullMillis = device.getEraseTime(first, last - first + 1) + blocks * millisPerBlock;
+        long millis = mStats.getDurationMillis();
+        mLog.Log(4, String.format("WRITE: Skipped %d of %d erase pages (about %d ms of erase), took %d ms instead of about %d ms for a full flash, %d ms saved",
+                kept, last - first + 1, eraseSaved, millis, fullMillis, Math.max(0, fullMillis - millis)));
+    }
+
+    private void markErased(int first, int count) {
+        mErasedPages.set(first, first + count);
+        FlashManifest manifest = getManifest();
+        if (manifest != null) {
+            manifest.clear(first, count);
+            saveManifest(manifest);
+        }
+    }
+
+    private void markWritten(long address, int length) {
+        Device device = getDevice();
+        if (device != null && isFlash(address, length))
+            mErasedPages.clear(device.getErasePage(address), device.getErasePage(address + length - 1) + 1);
+    }
+
+    /**
+     * Write one page and wait for the ACK of every frame before sending the next one.
+     */
+    private boolean writePage(TransmissionPlan plan, ByteBuffer view, int page, int size) throws IOException {
+        byte answer;
+        mWriteDataSent = false;
+        mStats.addIdle(mPacer.beforeFrame());
+        sendFrame(plan.commandFrame(view, page));
+        answer = readAnswer(Protocol.STM32_READ_TIMEOUT);
+        if (answer != Protocol.STM32_ACK) {
+            mLog.Log(Constants.ERROR, "WRITE: Command Error on Write PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", answer) + "]");
+            mPacer.onDrop();
+            return false;
+        }
+        sendFrame(plan.addressFrame(view, page));
+        answer = readAnswer(Protocol.STM32_READ_TIMEOUT);
+        if (answer != Protocol.STM32_ACK) {
+            mLog.Log(Constants.ERROR, "WRITE: Address Error on Write PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", answer) + "]");
+            mPacer.onDrop();
+            return false;
+        }
+        sendFrame(plan.dataFrame(view, page));
+        mWriteDataSent = true;
+        answer = readAnswer(Protocol.STM32_READ_TIMEOUT);
+        if (answer != Protocol.STM32_ACK) {
+            mLog.Log(Constants.ERROR, String.format("WRITE: Error on Writing Offset %d [0x%02x]", page * getWriteBlockSize(), answer));
+            mPacer.onDrop();
+            return false;
+        }
+        mPacer.onAck();
+        pageWritten(page, size);
+        return true;
+    }
+
+    /**
+     * Send the WRITE frames of up to pipelineWindow of the given blocks without waiting for their ACKs.
+     *
+     * @return number of blocks acknowledged in order before the first NACK or timeout
+     */
+    private int writePagesPipelined(TransmissionPlan plan, ByteBuffer view, int size, int[] blocks, int pages) throws IOException {
+        int sent = 0;
+        int acked = 0;
+        int acks = 0; // ACKs already received for the oldest outstanding page
+        while (acked < pages) {
+            while (sent < pages && sent - acked < pipelineWindow) {
+                sendFrame(plan.blockFrames(view, blocks[sent]));
+                sent++;
+            }
+            int expected = (sent - acked) * ACKS_PER_PAGE - acks;
+            int numRead = mTransport.read(mAckBuffer, 0, 1, Protocol.STM32_READ_TIMEOUT);
+            if (numRead > 0 && expected > 1)
+                numRead += mTransport.read(mAckBuffer, 1, Math.min(expected - 1, mTransport.available()), 0);
+            if (numRead <= 0) {
+                mLog.Log(Constants.ERROR, "WRITE: Timeout in pipeline on PAGE " + String.valueOf(blocks[acked]));
+                mPacer.onDrop();
+                return acked;
+            }
+            notifyHandler(Constants.MESSAGE_READ, numRead, mAckBuffer);
+            for (int i = 0; i < numRead; i++) {
+                if (mAckBuffer[i] != Protocol.STM32_ACK) {
+                    mLog.Log(Constants.ERROR, "WRITE: Error in pipeline on PAGE " + String.valueOf(blocks[acked]) + " [" + String.format("0x%02x", mAckBuffer[i]) + "]");
+                    mPacer.onDrop();
+                    return acked;
+                }
+                if (++acks == ACKS_PER_PAGE) {
+                    acks = 0;
+                    mPacer.onAck();
+                    pageWritten(blocks[acked], size);
+                    acked++;
+                }
+            }
+        }
+        return acked;
+    }
+
+    private void pageWritten(int page, int size) {
+        long[] dataBuf = mWriteProgress;
+        dataBuf[0] = mProgressBlocks + page;
+        dataBuf[1] = getWriteBlockSize() - 1;
+        dataBuf[3] = mProgressSize > 0 ? mProgressSize : size;
+        mStats.addPage();
+        if (mOnWriteMemoryByteListener != null)
+            mOnWriteMemoryByteListener.onByte(dataBuf);
+    }
+
+    /**
+     * Report a failed write to the handler: page, offset in the page (-1 for the whole page),
+     * size of the firmware and the address which failed.
+     */
+    private boolean writeFailed(long address, int page, int countData, int size) {
+        long[] errBuff = new long[4];
+        errBuff[0] = page;
+        errBuff[1] = countData;
+        errBuff[2] = size;
+        errBuff[3] = address;
+        notifyHandler(Constants.MESSAGE_WRITE_MEMORY_FAILED, errBuff.length, errBuff);
+        return false;
+    }
+
+    /**
+     * Prepare the next attempt of a failed transaction: back off, then bring
+     * the bootloader back in sync.
+     *
+     * @return false if all retries are used up or the bootloader cannot be resynchronised
+     */
+    private boolean retry(String operation, int page, int attempt) throws IOException {
+        if (attempt >= maxRetries) {
+            mLog.Log(Constants.ERROR, operation + ": Giving up on PAGE " + page + " after " + attempt + " retries");
+            return false;
+        }
+        mStats.addRetry();
+        long backoff = RETRY_BACKOFF << attempt;
+        mLog.Log(3, operation + ": Retry " + (attempt + 1) + " of " + maxRetries + " on PAGE " + page + " in " + backoff + " ms");
+        try {
+            Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return resync();
+    }
+
+    /**
+     * Bring the bootloader back to waiting for a command after a lost, corrupted or
+     * unanswered frame. A frame the bootloader still waits for is completed with 0xFF
+     * bytes: they never form a valid address, count or erase frame, at most a WRITE
+     * of 0xFF which leaves the flash unchanged. Left over bytes are answered with
+     * NACK. Then single 0xFF bytes are sent until one completes an invalid command
+     * and is answered with NACK, so the next command starts on a frame boundary.
+     *
+     * @return true if the bootloader is in sync again
+     */
+    private boolean resync() throws IOException {
+        drainUntilQuiet();
+        sendFrame(mFrameBuilder.fill((byte) 0xFF, Protocol.STM32_BYTE_COUNT + 2));
+        drainUntilQuiet();
+        byte[] buffer = mAckBuffer;
+        for (int i = 0; i < 3; i++) {
+            sendByte((byte) 0xFF);
+            int numRead = readTimeout(buffer, 1, i == 0 ? RESYNC_TIMEOUT : Protocol.STM32_READ_TIMEOUT);
+            if (numRead == 1 && buffer[0] == Protocol.STM32_NACK) {
+                mLog.Log(Constants.DEBUG, "Resynchronised with bootloader");
+                return true;
+            }
+            if (numRead == 1)
+                drainUntilQuiet();
+        }
+        mStats.addFailedResync();
+        mLog.Log(Constants.ERROR, "Cannot resynchronise with bootloader!");
+        return false;
+    }
+
+    /**
+     * Throw away the answers still in flight after an error.
+     */
+    private void drainUntilQuiet() throws IOException {
+        long deadline = System.currentTimeMillis() + Protocol.STM32_READ_TIMEOUT;
+        while (mTransport.read(mAckBuffer, 0, 1, PIPELINE_QUIET_TIME) > 0
+                && System.currentTimeMillis() < deadline)
+            mTransport.drain();
+    }
+
     public int readMemory() throws IOException { // TODO add return values for the different errors
         commandRunning = false;
-        byte[] buffer = new byte[1];
         int numRead;
         mCommands.setRunning(true);
         mLog.Log("READ: Command in Progress!");
         int read_pages = 0;
         if (bootloaderCommandsRead && bootloaderGIDRead) {
             //mHandler.obtainMessage(Constants.MESSAGE_READ_MEMORY_START).sendToTarget();
-            long address = mDevices.getDevice(getBootloaderProductId()).getFlashStart(); //Constants.STM32_START_ADDRESS; // TODO: Start adress and page count from devices
+            Device device = getDevice();
+            long address = device != null ? device.getFlashStart() : 0;
             if (address <= 0) {
                 mLog.Log(Constants.ERROR, "READ: Error on getting Flash start Address!");
                 return 0;
             }
+            long end = device.getFlashEnd();
+            mStats.reset();
+            FileOutputStream backupStream = openBackupFile();
+            MemoryReader reader = openReader(address, end - address);
+            long[] dataBuf = mReadProgress;
             int emptyBytes = 0;
-            for (int page = 0; page < Protocol.STM32_PAGE_COUNT; page++) {
-                if (emptyBytes > skipReadOutBytes && !fullRead) {
-                    mLog.LogF("READ: Read " + String.valueOf(skipReadOutBytes) + " bytes of 0xff. Only empty bytes follow!");
-                    break;
-                }
-                sendByte(Protocol.STM32_READ_COMMAND);
-                sendByte((byte) (~Protocol.STM32_READ_COMMAND));
-                numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
-                switch (buffer[0]) {
-                    case Protocol.STM32_ACK:
-                        byte[] buf = new byte[5];
-                        buf[0] = (byte) (address >> 24);
-                        buf[1] = (byte) ((address >> 16) & 0xFF);
-                        buf[2] = (byte) ((address >> 8) & 0xFF);
-                        buf[3] = (byte) (address & 0xFF);
-                        buf[4] = (byte) (buf[0] ^ buf[1] ^ buf[2] ^ buf[3]);
-                        write(buf);
-                        numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
-                        address += Protocol.STM32_BYTE_COUNT;
-                        switch (buffer[0]) {
-                            case Protocol.STM32_ACK:
-                                sendByte((byte) (Protocol.STM32_BYTE_COUNT - 1));
-                                sendByte((byte) ~(Protocol.STM32_BYTE_COUNT - 1));
-                                numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
-                                switch (buffer[0]) {
-                                    case Protocol.STM32_ACK:
-                                        long[] dataBuf = new long[2];
-                                        dataBuf[0] = page;
-                                        byte[] data = new byte[getReadBlockSize()]; // TODO: blocksize to read in expert settings
-                                        for (int i = 0; i < data.length; i++) {
-                                            numRead = readTimeout(buffer, Protocol.STM32_READ_TIMEOUT);
-                                            if (numRead > 0) {
-                                                data[i] = buffer[0];
-                                                dataBuf[1] = i;
-                                                if (mOnReadMemoryByteListener != null)
-                                                    mOnReadMemoryByteListener.onByte(dataBuf);
-                                                if (buffer[0] == (byte) 0xFF) emptyBytes++;
-                                                else
-                                                    emptyBytes = 0;
-                                            }
-                                        }
-                                        if (page == 0)
-                                            writeToFile(data, false);
-                                        else
-                                            writeToFile(data, true); // TODO file write error exception
-                                        //mLog.LogF("READ: Read Page "+String.valueOf(page));
-                                        read_pages++;
-                                        break;
-                                }
-                                break;
-                            default:
-                                mLog.Log(Constants.ERROR, "READ: Address Error on Read PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", buffer[0]) + "]");
-                                commandRunning = false;
-                                return 0;
-                        }
+            try {
+                for (ByteBuffer block; (block = reader.next()) != null; ) {
+                    numRead = block.remaining();
+                    for (int i = 0; i < numRead; i++) {
+                        if (block.get(i) == (byte) 0xFF) emptyBytes++;
+                        else
+                            emptyBytes = 0;
+                    }
+                    dataBuf[0] = read_pages;
+                    dataBuf[1] = numRead - 1;
+                    if (mOnReadMemoryByteListener != null)
+                        mOnReadMemoryByteListener.onByte(dataBuf);
+                    if (backupStream != null)
+                        backupStream.write(block.array(), block.arrayOffset(), numRead);
+                    //mLog.LogF("READ: Read Page "+String.valueOf(page));
+                    read_pages++;
+                    mStats.addPage();
+                    if (emptyBytes > skipReadOutBytes && !fullRead && reader.hasNext()) {
+                        mLog.LogF("READ: Read " + String.valueOf(skipReadOutBytes) + " bytes of 0xff. Only empty bytes follow!");
                         break;
-                    default:
-                        mLog.Log(Constants.ERROR, "READ: Command Error on Read PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", buffer[0]) + "]");
-                        commandRunning = false;
-                        return 0;
+                    }
                 }
+            } finally {
+                if (backupStream != null)
+                    backupStream.close();
+                reader.close();
             }
+            mStats.finish();
             mLog.Log(4, "READ: Read " + String.valueOf(read_pages) + " Pages");
+            mLog.Log(4, "READ: " + mStats);
             mLog.Log(4, "READ: Command success!");
             commandRunning = false;
             return read_pages;
@@ -641,76 +1505,189 @@ public class Bootloader {
         }
     }
 
-    private int readTimeout(byte[] b, int timeoutMillis) throws IOException {
-        int bufferOffset = 0;
-        long maxTimeMillis = System.currentTimeMillis() + timeoutMillis;
-        while (System.currentTimeMillis() < maxTimeMillis && bufferOffset < b.length) {
-            int readLength = java.lang.Math.min(mmInStream.available(), b.length - bufferOffset);
-            // can alternatively use bufferedReader, guarded by isReady():
-            int readResult = mmInStream.read(b, bufferOffset, readLength);
-            if (readResult == -1) break;
-            bufferOffset += readResult;
+    /**
+     * Read length bytes at address into dst and advance its position, f.e. to dump a RAM window
+     * or a part of the flash without a backup file.
+     */
+    public boolean read(long address, int length, ByteBuffer dst) throws IOException {
+        commandRunning = true;
+        if (!bootloaderCommandsRead) {
+            mLog.Log(Constants.ERROR, "READ: Error! GET Command not completed!");
+            commandRunning = false;
+            return false;
+        }
+        if (dst.remaining() < length) {
+            mLog.Log(Constants.ERROR, "READ: Buffer too small for " + length + " bytes");
+            commandRunning = false;
+            return false;
+        }
+        mStats.reset();
+        boolean success = readRange(address, length, dst);
+        mStats.finish();
+        mLog.Log(4, String.format("READ: %d bytes at 0x%08x in %d ms", length, address, mStats.getDurationMillis()));
+        commandRunning = false;
+        return success;
+    }
+
+    /**
+     * Read length bytes at address into dst in blocks of readBlockSize.
+     */
+    private boolean readRange(long address, int length, ByteBuffer dst) throws IOException {
+        ByteBuffer readPage = mBufferPool.acquire(getReadBlockSize());
+        byte[] data = readPage.array();
+        try {
+            for (int page = 0, offset = 0; offset < length; page++) {
+                int len = Math.min(getReadBlockSize(), length - offset);
+                if (!readPageWithRetry(address + offset, page, data, len))
+                    return false;
+                dst.put(data, 0, len);
+                offset += len;
+            }
+            return true;
+        } finally {
+            mBufferPool.release(readPage);
+        }
+    }
+
+    /**
+     * Stream length bytes at address block by block without buffering the range, see {@link MemoryReader}.
+     * The reader has to be closed after use.
+     */
+    public MemoryReader openReader(long address, long length) {
+        return new MemoryReader(this, mBufferPool, address, length, getReadBlockSize());
+    }
+
+    /**
+     * One READ transaction with retries.
+     *
+     * @return false once all retries failed
+     */
+    boolean readPageWithRetry(long address, int page, byte[] data, int len) throws IOException {
+        for (int attempt = 0; !readPage(address, page, data, len); attempt++) {
+            if (!retry("READ", page, attempt))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * One READ transaction of len bytes into data.
+     *
+     * @return false on a NACK, an invalid answer or a timeout
+     */
+    private boolean readPage(long address, int page, byte[] data, int len) throws IOException {
+        byte answer;
+        sendCommand(Protocol.STM32_READ_COMMAND);
+        answer = readAnswer(Protocol.STM32_READ_TIMEOUT);
+        if (answer != Protocol.STM32_ACK) {
+            mLog.Log(Constants.ERROR, "READ: Command Error on Read PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", answer) + "]");
+            return false;
+        }
+        sendFrame(mFrameBuilder.address(address));
+        answer = readAnswer(Protocol.STM32_READ_TIMEOUT);
+        if (answer != Protocol.STM32_ACK) {
+            mLog.Log(Constants.ERROR, "READ: Address Error on Read PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", answer) + "]");
+            return false;
         }
+        sendFrame(mFrameBuilder.count(len));
+        answer = readAnswer(Protocol.STM32_READ_TIMEOUT);
+        if (answer != Protocol.STM32_ACK) {
+            mLog.Log(Constants.ERROR, "READ: Count Error on Read PAGE " + String.valueOf(page) + " [" + String.format("0x%02x", answer) + "]");
+            return false;
+        }
+        int numRead = readBlock(data, len, Protocol.STM32_READ_TIMEOUT);
+        if (numRead < len) {
+            mLog.Log(Constants.ERROR, "READ: Timeout on Read PAGE " + String.valueOf(page) + " (" + numRead + " of " + len + " bytes)");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the single byte answer to a frame.
+     *
+     * @return the answer, 0 if none arrived in time
+     */
+    private byte readAnswer(long timeoutMillis) throws IOException {
+        mAckBuffer[0] = 0;
+        readTimeout(mAckBuffer, 1, timeoutMillis);
+        return mAckBuffer[0];
+    }
+
+    private int readTimeout(byte[] b, long timeoutMillis) throws IOException {
+        return readTimeout(b, b.length, timeoutMillis);
+    }
+
+    private int readTimeout(byte[] b, int len, long timeoutMillis) throws IOException {
+        int bufferOffset = mTransport.read(b, 0, len, timeoutMillis);
         // Share the sent message back to the UI Activity
-        mHandler.obtainMessage(Constants.MESSAGE_READ, -1, -1, b)
-                .sendToTarget();
+        notifyHandler(Constants.MESSAGE_READ, -1, b);
         return bufferOffset;
     }
 
+    /**
+     * Send a complete frame with a single write on the link.
+     */
+    private void sendFrame(ByteBuffer frame) throws IOException {
+        int length = frame.remaining();
+        mFrames[0] = frame;
+        mTransport.write(mFrames);
+        mTransport.flush();
+        mStats.addPacket(length);
+        if (frame.hasArray())
+            notifyHandler(Constants.MESSAGE_WRITE, -1, frame.array());
+    }
+
+    private void sendCommand(byte command) throws IOException {
+        sendFrame(mFrameBuilder.command(command));
+    }
+
+    /**
+     * Receive a complete block with a single deadline.
+     */
+    private int readBlock(byte[] b, int len, long timeoutMillis) throws IOException {
+        int numRead = mTransport.read(b, 0, len, timeoutMillis);
+        notifyHandler(Constants.MESSAGE_READ, numRead, b);
+        return numRead;
+    }
+
     public void write(byte[] buffer) {
         try {
-            mmOutStream.write(buffer);
+            mTransport.write(buffer, 0, buffer.length);
+            mTransport.flush();
+            mStats.addPacket(buffer.length);
 
             // Share the sent message back to the UI Activity
-            mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                    .sendToTarget();
+            notifyHandler(Constants.MESSAGE_WRITE, -1, buffer);
         } catch (IOException e) {
-            mHandler.obtainMessage(Constants.MESSAGE_IO_ERROR, -1, -1, buffer)
-                    .sendToTarget();
+            notifyHandler(Constants.MESSAGE_IO_ERROR, -1, buffer);
             mLog.Log(2, "Error: Exception during write ("+e.getMessage()+")");
         }
     }
 
-    public boolean writeToFile(byte[] array, boolean overwrite) {
-        String path = Environment.getExternalStorageDirectory() + "//STM32//";
-        String filepath;
-        filepath = path + "backup" + Constants.FIRMWARE_EXTENSION; // Add date!?
-        /* MagicLight specific
-        if (mCommands.getVer_major() > 0) {
-            filepath = path + String.format("%s_%d_%d_build%d",  Constants.FIRMWARE_FILENAME, mCommands.getVer_major(), mCommands.getVer_minor(), mCommands.getVer_build()) + Constants.FIRMWARE_EXTENSION;
-        } else {
-            filepath = path + "backup" + Constants.FIRMWARE_EXTENSION; // Add date!?
+    private void notifyHandler(int what, int arg1, Object obj) {
+        if (mHandler != null)
+            mHandler.obtainMessage(what, arg1, -1, obj).sendToTarget();
+    }
+
+    /**
+     * Open the backup file for a complete readout, it is kept open until the readout is finished.
+     */
+    private FileOutputStream openBackupFile() {
+        if (backupDirectory == null) {
+            mLog.Log(Constants.ERROR, "No backup directory set!");
+            return null;
         }
-        */
-        //LogTextView.d(TAG, path); // TODO: Handler message for filename?
-        FileOutputStream stream;
         try {
-            stream = new FileOutputStream(filepath, overwrite);
-            try {
-                stream.write(array);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            } finally {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }
+            return new FileOutputStream(new File(backupDirectory, "backup" + Constants.FIRMWARE_EXTENSION));
         } catch (FileNotFoundException e) {
             e.printStackTrace();
-            return false;
+            return null;
         }
-        return true;
-
     }
 
     private void sendByte(byte b) throws IOException {
-        byte[] send = new byte[1];
-        send[0] = b;
-        write(send);
+        sendFrame(mFrameBuilder.single(b));
     }
 
     public byte getBootloaderVersion() {
@@ -758,6 +1735,38 @@ public class Bootloader {
         return writeBlockSize;
     }
 
+    /**
+     * Bytes per READ command, between 1 and 256.
+     */
+    public void setReadBlockSize(int size) {
+        readBlockSize = Math.max(1, Math.min(Protocol.STM32_BYTE_COUNT, size));
+    }
+
+    /**
+     * Bytes per WRITE command. Rounded down to a power of two between 4 and 256, so the
+     * blocks are word aligned and never cross the end of the flash.
+     */
+    public void setWriteBlockSize(int size) {
+        writeBlockSize = Integer.highestOneBit(Math.max(4, Math.min(Protocol.STM32_BYTE_COUNT, size)));
+    }
+
+    /**
+     * Entry of the detected target in the device table, null before GID or for an unknown target.
+     */
+    public Device getDevice() {
+        if (!bootloaderGIDRead)
+            return null;
+        return mDevices.getDevice(getBootloaderProductId());
+    }
+
+    /**
+     * Flash size of the detected target in bytes, 0 if it is not known.
+     */
+    public long getFlashSize() {
+        Device device = getDevice();
+        return device != null ? device.getFlashEnd() - device.getFlashStart() : 0;
+    }
+
     public void setSkipReadOutBytes(int skip) {
         skipReadOutBytes = skip;
     }
@@ -770,6 +1779,105 @@ public class Bootloader {
         preEraseAll = prefEraseAll;
     }
 
+    /**
+     * Read the flash back before writing and only erase and write the erase pages which differ
+     * from the firmware. Takes precedence over {@link #setPreEraseAll(boolean)}.
+     */
+    public void setDifferentialWrite(boolean prefDifferentialWrite) {
+        differentialWrite = prefDifferentialWrite;
+    }
+
+    /**
+     * Read the flash back after writing and compare it with the firmware.
+     */
+    public void setVerifyAfterWrite(boolean prefVerify) {
+        verifyAfterWrite = prefVerify;
+    }
+
+    /**
+     * Fraction of the write blocks read back by the verify, 1 verifies everything. The first and
+     * the last block are always verified.
+     */
+    public void setVerifyCoverage(float fraction) {
+        verifyCoverage = Math.max(0, Math.min(1, fraction));
+    }
+
+    public float getVerifyCoverage() {
+        return verifyCoverage;
+    }
+
+    /**
+     * Seed of the sampled verify, the seed of every session is logged so a failing sample can be
+     * verified again. 0 takes a new seed for every session.
+     */
+    public void setVerifySeed(long seed) {
+        verifySeed = seed;
+    }
+
+    /**
+     * Keep a {@link FlashManifest} of every target in directory and skip the erase pages which
+     * already hold the firmware according to it. The target is identified by the link address
+     * and the product ID from GID. A null directory disables the manifest.
+     */
+    public void setManifestDirectory(File directory) {
+        manifestDirectory = directory;
+        mManifest = null;
+    }
+
+    /**
+     * Address of the link to the target, f.e. the Bluetooth address of the adapter.
+     */
+    public void setLinkAddress(String address) {
+        linkAddress = address;
+        mManifest = null;
+    }
+
+    /**
+     * Keep loaded firmware files in cache, so writing the same file again starts sending at once.
+     * The cache can be shared by several bootloader connections, null disables it.
+     */
+    public void setFirmwareCache(FirmwareCache cache) {
+        mFirmwareCache = cache;
+    }
+
+    /**
+     * Read back the first bytes of every erase page skipped because of the manifest.
+     */
+    public void setManifestSpotCheck(boolean prefSpotCheck) {
+        manifestSpotCheck = prefSpotCheck;
+    }
+
+    /**
+     * Insert a growing gap between WRITE frames only after the link dropped bytes.
+     */
+    public void setAdaptiveFrameGap(boolean prefAdaptiveGap) {
+        mPacer.setAdaptive(prefAdaptiveGap);
+    }
+
+    /**
+     * Number of WRITE pages sent before their ACKs are received, 0 or 1 disables pipelining.
+     * Only usable if the link and the target buffer a complete window of frames.
+     */
+    public void setPipelineWindow(int window) {
+        pipelineWindow = window;
+        mAckBuffer = new byte[Math.max(1, window) * ACKS_PER_PAGE];
+    }
+
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
+    /**
+     * Number of times a failed READ or WRITE page is issued again, 0 aborts on the first error.
+     */
+    public void setMaxRetries(int retries) {
+        maxRetries = retries;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
     public void setResetAfterWrite(boolean prefResetWrite) {
         resetAfterWrite = prefResetWrite;
     }
@@ -804,5 +1912,20 @@ public class Bootloader {
     public Devices getDevices() {
         return mDevices;
     }
+
+    /**
+     * Statistics of the last read or write operation.
+     */
+    public TransferStats getTransferStats() {
+        return mStats;
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public void setBackupDirectory(File directory) {
+        backupDirectory = directory;
+    }
 }
 
@@ -0,0 +1,67 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of reusable heap ByteBuffers. The page transfers work on the
+ * backing arrays, so the buffers are never direct. Every buffer which had
+ * to be newly allocated is counted, so a steady state without allocations
+ * can be verified.
+ */
+public class BufferPool {
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private long allocationCount;
+
+    /**
+     * Get a cleared buffer with at least the given capacity and its limit set to size.
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        Iterator<ByteBuffer> it = free.iterator();
+        while (it.hasNext()) {
+            ByteBuffer buffer = it.next();
+            if (buffer.capacity() >= size) {
+                it.remove();
+                buffer.clear();
+                buffer.limit(size);
+                return buffer;
+            }
+        }
+        allocationCount++;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer != null)
+            free.push(buffer);
+    }
+
+    /**
+     * Number of buffers allocated since the pool was created.
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+}
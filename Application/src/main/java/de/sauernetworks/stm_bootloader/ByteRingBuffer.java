@@ -0,0 +1,166 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single producer / single consumer byte queue. The producer is
+ * usually the reader thread of a link, the consumer the protocol code.
+ * Both sides block by parking, a waiting reader is woken up as soon as the
+ * first bytes arrive or its deadline passes.
+ */
+public class ByteRingBuffer {
+    private final byte[] buffer;
+    private final int mask;
+
+    private volatile long head; // next position to read, only written by the consumer
+    private volatile long tail; // next position to write, only written by the producer
+    private volatile Thread consumer;
+    private volatile Thread producer;
+    private volatile boolean closed;
+    private volatile IOException closeCause;
+
+    /**
+     * @param capacity size in bytes, rounded up to the next power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Append len bytes, blocking while the buffer is full.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (closed)
+                throw new IOException("Ring buffer closed");
+            long t = tail;
+            int free = buffer.length - (int) (t - head);
+            if (free == 0) {
+                producer = Thread.currentThread();
+                if (buffer.length == (int) (tail - head) && !closed)
+                    LockSupport.park(this);
+                producer = null;
+                if (Thread.interrupted())
+                    throw new InterruptedIOException("Ring buffer write interrupted");
+                continue;
+            }
+            int n = Math.min(len, free);
+            int pos = (int) (t & mask);
+            int first = Math.min(n, buffer.length - pos);
+            System.arraycopy(b, off, buffer, pos, first);
+            System.arraycopy(b, off + first, buffer, 0, n - first);
+            tail = t + n;
+            off += n;
+            len -= n;
+            Thread c = consumer;
+            if (c != null)
+                LockSupport.unpark(c);
+        }
+    }
+
+    /**
+     * Read up to len bytes, waiting no longer than timeoutMillis.
+     *
+     * @return number of bytes read
+     * @throws IOException if the buffer was closed and all bytes are consumed
+     */
+    public int read(byte[] b, int off, int len, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        int read = 0;
+        while (read < len) {
+            long h = head;
+            int avail = (int) (tail - h);
+            if (avail == 0) {
+                if (closed) {
+                    if (read > 0)
+                        break;
+                    throw closeCause != null ? closeCause : new IOException("Ring buffer closed");
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                consumer = Thread.currentThread();
+                if (tail == head && !closed)
+                    LockSupport.parkNanos(this, remaining);
+                consumer = null;
+                if (Thread.interrupted())
+                    throw new InterruptedIOException("Ring buffer read interrupted");
+                continue;
+            }
+            int n = Math.min(len - read, avail);
+            int pos = (int) (h & mask);
+            int first = Math.min(n, buffer.length - pos);
+            System.arraycopy(buffer, pos, b, off + read, first);
+            System.arraycopy(buffer, 0, b, off + read + first, n - first);
+            head = h + n;
+            read += n;
+            Thread p = producer;
+            if (p != null)
+                LockSupport.unpark(p);
+        }
+        return read;
+    }
+
+    public int available() throws IOException {
+        int avail = (int) (tail - head);
+        if (avail == 0 && closed)
+            throw closeCause != null ? closeCause : new IOException("Ring buffer closed");
+        return avail;
+    }
+
+    /**
+     * Discard all buffered bytes. Must only be called by the consumer.
+     */
+    public void clear() {
+        head = tail;
+        Thread p = producer;
+        if (p != null)
+            LockSupport.unpark(p);
+    }
+
+    /**
+     * Close the buffer. Buffered bytes can still be read, after that readers
+     * get the given cause (or a generic IOException if null).
+     */
+    public void close(IOException cause) {
+        closeCause = cause;
+        closed = true;
+        Thread c = consumer;
+        if (c != null)
+            LockSupport.unpark(c);
+        Thread p = producer;
+        if (p != null)
+            LockSupport.unpark(p);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+}
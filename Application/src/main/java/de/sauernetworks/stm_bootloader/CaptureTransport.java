@@ -0,0 +1,110 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport decorator which records all traffic of the wrapped Transport
+ * into a capture file. Every record is stored as direction byte
+ * ({@link #DIRECTION_TX} or {@link #DIRECTION_RX}), timestamp in
+ * microseconds since the capture was opened, length and the raw bytes.
+ */
+public class CaptureTransport implements Transport {
+    public static final byte DIRECTION_TX = '>';
+    public static final byte DIRECTION_RX = '<';
+
+    private final Transport mTransport;
+    private final DataOutputStream mCapture;
+    private final long startNanos;
+
+    public CaptureTransport(Transport transport, File captureFile) throws IOException {
+        mTransport = transport;
+        mCapture = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(captureFile)));
+        startNanos = System.nanoTime();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len, long timeoutMillis) throws IOException {
+        int numRead = mTransport.read(b, off, len, timeoutMillis);
+        if (numRead > 0)
+            record(DIRECTION_RX, b, off, numRead);
+        return numRead;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mTransport.write(b, off, len);
+        record(DIRECTION_TX, b, off, len);
+    }
+
+    @Override
+    public void write(ByteBuffer[] frames) throws IOException {
+        int length = 0;
+        for (ByteBuffer frame : frames)
+            length += frame.remaining();
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (ByteBuffer frame : frames) {
+            int remaining = frame.remaining();
+            frame.duplicate().get(data, offset, remaining);
+            offset += remaining;
+        }
+        mTransport.write(frames);
+        record(DIRECTION_TX, data, 0, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mTransport.flush();
+        mCapture.flush();
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mTransport.available();
+    }
+
+    @Override
+    public void drain() throws IOException {
+        mTransport.drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mTransport.close();
+        } finally {
+            mCapture.close();
+        }
+    }
+
+    private synchronized void record(byte direction, byte[] b, int off, int len) throws IOException {
+        mCapture.writeByte(direction);
+        mCapture.writeLong((System.nanoTime() - startNanos) / 1000);
+        mCapture.writeInt(len);
+        mCapture.write(b, off, len);
+    }
+}
@@ -21,6 +21,14 @@ package de.sauernetworks.stm_bootloader;
  * Created by Michael Sauer at 01:09 on 05.07.15
  **/
 public class Device {
+    /*
+     * Worst case erase times from the datasheets: 40 ms per page on F0/F1/F3,
+     * about 3.2 ms per page on L0/L1 and 32 ms per KB of a F2/F4 sector.
+     */
+    private static final long PAGE_ERASE_TIME = 40;
+    private static final long SMALL_PAGE_ERASE_TIME = 4;
+    private static final long SECTOR_ERASE_TIME_PER_KB = 32;
+
     int deviceID;
     String deviceName;
     long ram_start;
@@ -95,5 +103,59 @@ public class Device {
 
     public long getMemEnd() { return mem_end; }
 
+    /**
+     * F2 and F4 parts are erased in sectors of 16, 64 and 128 KB, their page size
+     * is the size of the first sectors only.
+     */
+    public boolean hasSectorLayout() {
+        return page_size == 16384;
+    }
+
+    /**
+     * Number of the page (or sector) containing address, as used in erase page lists.
+     */
+    public int getErasePage(long address) {
+        long offset = address - flash_start;
+        if (!hasSectorLayout() || offset < 4 * page_size)
+            return (int) (offset / page_size);
+        if (offset < 8 * page_size)
+            return 4;
+        return 5 + (int) ((offset - 8 * page_size) / (8 * page_size));
+    }
+
+    /**
+     * Start address of an erase page (or sector).
+     */
+    public long getErasePageStart(int page) {
+        if (!hasSectorLayout() || page <= 4)
+            return flash_start + (long) page * page_size;
+        return flash_start + 8L * page_size + (page - 5) * 8L * page_size;
+    }
 
+    public int getErasePageCount() {
+        return getErasePage(flash_end - 1) + 1;
+    }
+
+    /**
+     * Estimated worst case time to erase count pages (or sectors) from first on, in milliseconds.
+     */
+    public long getEraseTime(int first, int count) {
+        long time = 0;
+        for (int page = first; page < first + count; page++) {
+            if (hasSectorLayout())
+                time += (getErasePageStart(page + 1) - getErasePageStart(page)) / 1024 * SECTOR_ERASE_TIME_PER_KB;
+            else if (page_size <= 256)
+                time += SMALL_PAGE_ERASE_TIME;
+            else
+                time += PAGE_ERASE_TIME;
+        }
+        return time;
+    }
+
+    /**
+     * Estimated worst case time to erase the whole flash in milliseconds.
+     */
+    public long getMassEraseTime() {
+        return getEraseTime(0, getErasePageCount());
+    }
 }
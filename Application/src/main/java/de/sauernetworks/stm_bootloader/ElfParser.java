@@ -0,0 +1,97 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Loader of 32 bit ELF executables. The file content of every PT_LOAD segment is added to a
+ * {@link FirmwareImage} at its physical (load) address, so initialised data is placed behind the
+ * code in flash and segments without file content like .bss are left out.
+ */
+public class ElfParser {
+    private static final int EHDR_SIZE = 52;
+    private static final int PHDR_SIZE = 32;
+    private static final int PT_LOAD = 1;
+    private static final byte ELFCLASS32 = 1;
+    private static final byte ELFDATA2LSB = 1;
+    private static final byte ELFDATA2MSB = 2;
+
+    private ElfParser() {
+    }
+
+    /**
+     * @throws IOException if the file is no 32 bit ELF file or a segment lies outside of it
+     */
+    public static FirmwareImage parse(File file) throws IOException {
+        RandomAccessFile elf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer header = read(elf, 0, EHDR_SIZE);
+            if (header.get(0) != 0x7F || header.get(1) != 'E' || header.get(2) != 'L' || header.get(3) != 'F')
+                throw new IOException("ELF: " + file.getName() + " is not an ELF file");
+            if (header.get(4) != ELFCLASS32)
+                throw new IOException("ELF: Only 32 bit ELF files are supported");
+            if (header.get(5) == ELFDATA2MSB)
+                header.order(ByteOrder.BIG_ENDIAN);
+            else if (header.get(5) != ELFDATA2LSB)
+                throw new IOException("ELF: Unknown byte order " + header.get(5));
+            else
+                header.order(ByteOrder.LITTLE_ENDIAN);
+            FirmwareImage image = new FirmwareImage();
+            image.setEntryPoint(header.getInt(24) & 0xFFFFFFFFL);
+            long phoff = header.getInt(28) & 0xFFFFFFFFL;
+            int phentsize = header.getShort(42) & 0xFFFF;
+            int phnum = header.getShort(44) & 0xFFFF;
+            if (phnum > 0 && phentsize < PHDR_SIZE)
+                throw new IOException("ELF: Invalid program header size " + phentsize);
+            for (int i = 0; i < phnum; i++) {
+                ByteBuffer phdr = read(elf, phoff + (long) i * phentsize, PHDR_SIZE).order(header.order());
+                if (phdr.getInt(0) != PT_LOAD)
+                    continue;
+                long offset = phdr.getInt(4) & 0xFFFFFFFFL;
+                long paddr = phdr.getInt(12) & 0xFFFFFFFFL;
+                long filesz = phdr.getInt(16) & 0xFFFFFFFFL;
+                if (filesz == 0)
+                    continue;
+                if (offset + filesz > elf.length())
+                    throw new IOException(String.format("ELF: Segment %d at 0x%08x exceeds the file", i, paddr));
+                ByteBuffer data = read(elf, offset, (int) filesz);
+                image.append(paddr, data.array(), 0, (int) filesz);
+                image.flush();
+            }
+            return image;
+        } finally {
+            elf.close();
+        }
+    }
+
+    private static ByteBuffer read(RandomAccessFile file, long position, int length) throws IOException {
+        if (position + length > file.length())
+            throw new IOException("ELF: Unexpected end of file");
+        byte[] data = new byte[length];
+        file.seek(position);
+        file.readFully(data);
+        return ByteBuffer.wrap(data);
+    }
+}
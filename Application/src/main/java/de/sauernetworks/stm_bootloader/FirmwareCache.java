@@ -0,0 +1,274 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of loaded firmware files, so flashing the same file to one board after another
+ * neither parses it nor compiles its transmission plan again. Entries are keyed by the canonical
+ * path and only used while the modification time, the size and the SHA-1 of the file are
+ * unchanged. The file is hashed again on every hit, as the modification time can be coarse
+ * (2 s on FAT) or kept by the tool which copied the file. Once the cached data, including the
+ * page hashes and transmission plans derived from it, exceeds the size limit the least recently
+ * used entries are evicted.
+ */
+public class FirmwareCache {
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int PAGE_HASH_BYTES = 128; ///< Estimated heap size of one hex SHA-1 string
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+    private int hits;
+    private int misses;
+
+    public FirmwareCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public FirmwareCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Cached firmware of file, null if it is not cached or the file changed since.
+     */
+    public synchronized Entry get(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        Entry entry = entries.get(key);
+        if (entry != null && (entry.modified != file.lastModified() || entry.size != file.length()
+                || !entry.fileHash.equals(hashFile(file)))) {
+            remove(key);
+            entry = null;
+        }
+        if (entry != null)
+            hits++;
+        else
+            misses++;
+        return entry;
+    }
+
+    /**
+     * Cache a binary file. The data is copied onto the heap, so a mapping of the file which
+     * changes later cannot change the cached firmware.
+     */
+    public Entry put(File file, ByteBuffer data) throws IOException {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        MessageDigest digest = newDigest();
+        digest.update(copy.duplicate());
+        String hash = toHex(digest.digest());
+        return add(new Entry(this, file, hash, hash, copy, null, copy.capacity()));
+    }
+
+    /**
+     * Cache a parsed sparse image, it must not be changed afterwards.
+     */
+    public Entry put(File file, FirmwareImage image) throws IOException {
+        MessageDigest digest = newDigest();
+        for (Map.Entry<Long, byte[]> segment : image.getSegments().entrySet()) {
+            digest.update(ByteBuffer.allocate(8).putLong(0, segment.getKey()));
+            digest.update(segment.getValue());
+        }
+        return add(new Entry(this, file, hashFile(file), toHex(digest.digest()), null, image, image.getSize()));
+    }
+
+    private synchronized Entry add(Entry entry) {
+        remove(entry.path);
+        if (entry.bytes > maxBytes)
+            return entry;
+        entries.put(entry.path, entry);
+        bytes += entry.bytes;
+        trim();
+        return entry;
+    }
+
+    /**
+     * Count bytes of data derived from entry, f.e. a transmission plan, against the size limit.
+     */
+    private synchronized void grow(Entry entry, long added) {
+        entry.bytes += added;
+        if (entries.get(entry.path) == entry) {
+            bytes += added;
+            trim();
+        }
+    }
+
+    private void trim() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            bytes -= entry.bytes;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Bytes of firmware held by the cache, with the page hashes and transmission plans.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                digest.update(buffer, 0, len);
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * One cached firmware file: either a binary or a sparse image, and what was derived from it.
+     */
+    public static class Entry {
+        private final FirmwareCache cache;
+        private final String path;
+        private final long modified;
+        private final long size;
+        private final String fileHash;
+        private final String contentHash;
+        private final ByteBuffer binary;
+        private final FirmwareImage image;
+        private long bytes; ///< Guarded by the cache
+        private final Map<String, String[]> pageHashes = new HashMap<String, String[]>();
+        private final Map<String, TransmissionPlan> plans = new HashMap<String, TransmissionPlan>();
+
+        Entry(FirmwareCache cache, File file, String fileHash, String contentHash, ByteBuffer binary, FirmwareImage image, long bytes) throws IOException {
+            this.cache = cache;
+            this.path = file.getCanonicalPath();
+            this.modified = file.lastModified();
+            this.size = file.length();
+            this.fileHash = fileHash;
+            this.contentHash = contentHash;
+            this.binary = binary;
+            this.image = image;
+            this.bytes = bytes;
+        }
+
+        /**
+         * The binary firmware in its own buffer view, null for a sparse image.
+         */
+        public ByteBuffer getBinary() {
+            return binary != null ? binary.duplicate() : null;
+        }
+
+        /**
+         * The sparse image, null for a binary.
+         */
+        public FirmwareImage getImage() {
+            return image;
+        }
+
+        /**
+         * SHA-1 of the firmware content.
+         */
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        /**
+         * Hashes of the firmware per erase page for a device and address, null if not computed yet.
+         */
+        String[] getPageHashes(String layout) {
+            synchronized (cache) {
+                return pageHashes.get(layout);
+            }
+        }
+
+        void putPageHashes(String layout, String[] hashes) {
+            synchronized (cache) {
+                String[] old = pageHashes.put(layout, hashes);
+                cache.grow(this, (long) (hashes.length - (old != null ? old.length : 0)) * PAGE_HASH_BYTES);
+            }
+        }
+
+        /**
+         * Transmission plan of the firmware for an address and write block size, null if not compiled yet.
+         */
+        TransmissionPlan getPlan(String layout) {
+            synchronized (cache) {
+                return plans.get(layout);
+            }
+        }
+
+        void putPlan(String layout, TransmissionPlan plan) {
+            synchronized (cache) {
+                TransmissionPlan old = plans.put(layout, plan);
+                cache.grow(this, plan.getLength() - (old != null ? old.getLength() : 0));
+            }
+        }
+    }
+}
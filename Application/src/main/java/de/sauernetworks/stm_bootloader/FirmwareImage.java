@@ -0,0 +1,178 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Sparse firmware image: segments of data at their target addresses, without the gaps
+ * between them. Records are appended in file order, contiguous records are joined into
+ * one segment and records overlapping an earlier segment replace its bytes.
+ */
+public class FirmwareImage {
+    private final TreeMap<Long, byte[]> segments = new TreeMap<Long, byte[]>();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long pendingAddress;
+    private long entryPoint = -1;
+
+    /**
+     * Load an Intel HEX (.hex, .ihex), Motorola S-record (.s19, .s28, .s37, .srec, .mot) or ELF (.elf, .axf) file.
+     *
+     * @throws IOException if the file cannot be read or is not valid in its format
+     */
+    public static FirmwareImage load(File file) throws IOException {
+        if (isElf(file.getName()))
+            return ElfParser.parse(file);
+        Reader reader = new BufferedReader(new FileReader(file));
+        try {
+            if (isIntelHex(file.getName()))
+                return IntelHexParser.parse(reader);
+            if (isSRecord(file.getName()))
+                return SRecordParser.parse(reader);
+            throw new IOException("Unknown firmware format " + file.getName());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * True if the file name is one of a sparse format which {@link #load(File)} reads.
+     */
+    public static boolean isSparseFormat(String name) {
+        return isIntelHex(name) || isSRecord(name) || isElf(name);
+    }
+
+    private static boolean isElf(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".elf") || lower.endsWith(".axf");
+    }
+
+    private static boolean isIntelHex(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".hex") || lower.endsWith(".ihex");
+    }
+
+    private static boolean isSRecord(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".s19") || lower.endsWith(".s28") || lower.endsWith(".s37") || lower.endsWith(".srec") || lower.endsWith(".mot");
+    }
+
+    /**
+     * Append len bytes of data at address.
+     */
+    public void append(long address, byte[] data, int off, int len) {
+        if (pending.size() > 0 && address != pendingAddress + pending.size())
+            flush();
+        if (pending.size() == 0)
+            pendingAddress = address;
+        pending.write(data, off, len);
+    }
+
+    /**
+     * Join the bytes appended last into the segments.
+     */
+    void flush() {
+        if (pending.size() > 0)
+            put(pendingAddress, pending.toByteArray());
+        pending.reset();
+    }
+
+    private void put(long address, byte[] data) {
+        long start = address;
+        long end = address + data.length;
+        // Segments overlapping or touching the new data are merged with it
+        Map.Entry<Long, byte[]> lower = segments.floorEntry(address);
+        if (lower != null && lower.getKey() + lower.getValue().length >= address)
+            start = lower.getKey();
+        SortedMap<Long, byte[]> covered = segments.subMap(start, true, end, true);
+        for (Map.Entry<Long, byte[]> segment : covered.entrySet())
+            end = Math.max(end, segment.getKey() + segment.getValue().length);
+        if (covered.isEmpty()) {
+            segments.put(address, data);
+            return;
+        }
+        byte[] merged = new byte[(int) (end - start)];
+        for (Map.Entry<Long, byte[]> segment : covered.entrySet())
+            System.arraycopy(segment.getValue(), 0, merged, (int) (segment.getKey() - start), segment.getValue().length);
+        System.arraycopy(data, 0, merged, (int) (address - start), data.length);
+        covered.clear();
+        segments.put(start, merged);
+    }
+
+    /**
+     * Segments by start address in ascending order.
+     */
+    public SortedMap<Long, byte[]> getSegments() {
+        flush();
+        return Collections.unmodifiableSortedMap(segments);
+    }
+
+    /**
+     * Lowest address with data, -1 for an empty image.
+     */
+    public long getStart() {
+        flush();
+        return segments.isEmpty() ? -1 : segments.firstKey();
+    }
+
+    /**
+     * Address behind the last byte of data, -1 for an empty image.
+     */
+    public long getEnd() {
+        flush();
+        return segments.isEmpty() ? -1 : segments.lastKey() + segments.lastEntry().getValue().length;
+    }
+
+    /**
+     * Number of bytes with data, without the gaps.
+     */
+    public long getSize() {
+        flush();
+        long size = 0;
+        for (byte[] data : segments.values())
+            size += data.length;
+        return size;
+    }
+
+    /**
+     * Start address given in the file, -1 if it has none.
+     */
+    public long getEntryPoint() {
+        return entryPoint;
+    }
+
+    void setEntryPoint(long address) {
+        entryPoint = address;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bytes in %d segments from 0x%08x to 0x%08x", getSize(), segments.size(), getStart(), getEnd());
+    }
+}
@@ -0,0 +1,133 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * What the host last wrote to every erase page (sector) of one target. A target is
+ * identified by the address of its link and the product ID from GID. For every page
+ * the hash of the firmware range written to it and the time of the write is kept in
+ * a properties file, so pages which would get the same content again can be skipped
+ * without reading them back.
+ */
+public class FlashManifest {
+    private final File file;
+    private final Properties entries = new Properties();
+
+    private FlashManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the manifest of a target from directory, an unknown target starts with an empty one.
+     */
+    public static FlashManifest load(File directory, String linkAddress, int productId) throws IOException {
+        String name = String.format("manifest_%s_%03x.properties", linkAddress.replaceAll("[^0-9A-Za-z]", ""), productId);
+        FlashManifest manifest = new FlashManifest(new File(directory, name));
+        if (manifest.file.exists()) {
+            InputStream in = new FileInputStream(manifest.file);
+            try {
+                manifest.entries.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return manifest;
+    }
+
+    public void save() throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            entries.store(out, "hash and time of the last write per erase page");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * True if page was last written with the content hash.
+     */
+    public boolean matches(int page, String hash) {
+        String entry = entries.getProperty(String.valueOf(page));
+        return entry != null && entry.startsWith(hash + " ");
+    }
+
+    public void put(int page, String hash, long timeMillis) {
+        entries.setProperty(String.valueOf(page), hash + " " + timeMillis);
+    }
+
+    /**
+     * Time page was last written, 0 if it is not known.
+     */
+    public long getTime(int page) {
+        String entry = entries.getProperty(String.valueOf(page));
+        return entry != null ? Long.parseLong(entry.substring(entry.indexOf(' ') + 1)) : 0;
+    }
+
+    /**
+     * Forget count pages from first on, f.e. after they were erased.
+     */
+    public void clear(int first, int count) {
+        for (int page = first; page < first + count; page++)
+            entries.remove(String.valueOf(page));
+    }
+
+    public void clearAll() {
+        entries.clear();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Hash of length bytes of data at offset which are written to address.
+     */
+    public static String hash(long address, ByteBuffer data, int offset, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int shift = 24; shift >= 0; shift -= 8)
+            digest.update((byte) (address >> shift));
+        ByteBuffer range = data.duplicate();
+        range.limit(offset + length).position(offset);
+        digest.update(range);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
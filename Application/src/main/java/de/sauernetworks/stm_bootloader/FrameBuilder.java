@@ -0,0 +1,140 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.nio.ByteBuffer;
+
+/**
+ * Builds complete AN3155 frames, so every frame can be sent with a single
+ * write on the link instead of one write per byte.
+ *
+ * One FrameBuilder is used per session. Its frame buffers come from a
+ * {@link BufferPool} and are reused: the buffer returned by a method is
+ * only valid until the same method is called again. Encoding a frame
+ * therefore allocates nothing.
+ */
+public class FrameBuilder {
+    private final ByteBuffer mSingle;
+    private final ByteBuffer mCommand;
+    private final ByteBuffer mAddress;
+    private final ByteBuffer mCount;
+    private final ByteBuffer mFill;
+    private final ByteBuffer mPageList;
+
+    public FrameBuilder(BufferPool pool) {
+        mSingle = pool.acquire(1);
+        mCommand = pool.acquire(2);
+        mAddress = pool.acquire(5);
+        mCount = pool.acquire(2);
+        mFill = pool.acquire(Protocol.STM32_BYTE_COUNT + 2);
+        mPageList = pool.acquire(2 * Protocol.STM32_EER_MAX_PAGES + 3);
+    }
+
+    /**
+     * A single byte, f.e. the INIT byte.
+     */
+    public ByteBuffer single(byte b) {
+        mSingle.clear();
+        mSingle.put(b);
+        mSingle.flip();
+        return mSingle;
+    }
+
+    /**
+     * Command opcode followed by its complement.
+     */
+    public ByteBuffer command(byte command) {
+        mCommand.clear();
+        mCommand.put(command);
+        mCommand.put((byte) ~command);
+        mCommand.flip();
+        return mCommand;
+    }
+
+    /**
+     * Four address bytes MSB first followed by their XOR checksum.
+     */
+    public ByteBuffer address(long address) {
+        byte b0 = (byte) (address >> 24);
+        byte b1 = (byte) ((address >> 16) & 0xFF);
+        byte b2 = (byte) ((address >> 8) & 0xFF);
+        byte b3 = (byte) (address & 0xFF);
+        mAddress.clear();
+        mAddress.put(b0).put(b1).put(b2).put(b3);
+        mAddress.put((byte) (b0 ^ b1 ^ b2 ^ b3));
+        mAddress.flip();
+        return mAddress;
+    }
+
+    /**
+     * Byte count of a READ (N = count - 1) followed by its complement.
+     */
+    public ByteBuffer count(int count) {
+        mCount.clear();
+        mCount.put((byte) (count - 1));
+        mCount.put((byte) ~(count - 1));
+        mCount.flip();
+        return mCount;
+    }
+
+    /**
+     * Page list of an Extended Erase: N = count - 1 and the page numbers from first on,
+     * all as two bytes MSB first, followed by the XOR checksum.
+     */
+    public ByteBuffer extendedErasePages(int first, int count) {
+        mPageList.clear();
+        mPageList.putShort((short) (count - 1));
+        for (int page = first; page < first + count; page++)
+            mPageList.putShort((short) page);
+        return pageListChecksum();
+    }
+
+    private ByteBuffer pageListChecksum() {
+        byte checksum = 0;
+        for (int i = 0; i < mPageList.position(); i++)
+            checksum ^= mPageList.get(i);
+        mPageList.put(checksum);
+        mPageList.flip();
+        return mPageList;
+    }
+
+    /**
+     * Page list of a (legacy) Erase: N = count - 1 and the page numbers from first on,
+     * all as single bytes, followed by the XOR checksum.
+     */
+    public ByteBuffer erasePages(int first, int count) {
+        mPageList.clear();
+        mPageList.put((byte) (count - 1));
+        for (int page = first; page < first + count; page++)
+            mPageList.put((byte) page);
+        return pageListChecksum();
+    }
+
+    /**
+     * len times the byte b, at most the size of a WRITE payload.
+     */
+    public ByteBuffer fill(byte b, int len) {
+        mFill.clear();
+        for (int i = 0; i < len; i++)
+            mFill.put(b);
+        mFill.flip();
+        return mFill;
+    }
+}
@@ -0,0 +1,93 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+/**
+ * Paces WRITE frames. Frames are sent as soon as the previous frame was
+ * acknowledged. Only when the link or the target is observed to drop or
+ * corrupt bytes, an inter-frame gap is inserted which grows on every drop
+ * and shrinks again after a run of clean frames.
+ */
+public class FramePacer {
+    public static final long LEGACY_PAGE_DELAY = 100; ///< Fixed delay per page of former versions in milliseconds
+
+    private static final long MIN_GAP = 5; ///< First gap after a drop in milliseconds
+    private static final long MAX_GAP = LEGACY_PAGE_DELAY;
+    private static final int DECAY_FRAMES = 32; ///< Clean frames after which the gap is halved
+
+    private boolean adaptive = true;
+    private long gapMillis;
+    private int cleanFrames;
+
+    /**
+     * Wait the current inter-frame gap, if any.
+     *
+     * @return the time actually waited in milliseconds
+     */
+    public long beforeFrame() {
+        if (!adaptive || gapMillis <= 0)
+            return 0;
+        long start = System.currentTimeMillis();
+        try {
+            Thread.sleep(gapMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * The frame was acknowledged.
+     */
+    public void onAck() {
+        if (gapMillis > 0 && ++cleanFrames >= DECAY_FRAMES) {
+            cleanFrames = 0;
+            gapMillis = gapMillis / 2 < MIN_GAP ? 0 : gapMillis / 2;
+        }
+    }
+
+    /**
+     * The answer to the frame was missing or not an ACK.
+     */
+    public void onDrop() {
+        cleanFrames = 0;
+        if (adaptive)
+            gapMillis = Math.min(MAX_GAP, Math.max(MIN_GAP, gapMillis * 2));
+    }
+
+    public void reset() {
+        gapMillis = 0;
+        cleanFrames = 0;
+    }
+
+    public long getGapMillis() {
+        return gapMillis;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        if (!adaptive)
+            reset();
+    }
+}
@@ -0,0 +1,116 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming parser of Intel HEX files. Records are read line by line and appended to a
+ * {@link FirmwareImage}, extended segment (02) and extended linear (04) addresses are supported.
+ */
+public class IntelHexParser {
+    private static final int DATA = 0x00;
+    private static final int END_OF_FILE = 0x01;
+    private static final int EXTENDED_SEGMENT_ADDRESS = 0x02;
+    private static final int START_SEGMENT_ADDRESS = 0x03;
+    private static final int EXTENDED_LINEAR_ADDRESS = 0x04;
+    private static final int START_LINEAR_ADDRESS = 0x05;
+
+    private IntelHexParser() {
+    }
+
+    /**
+     * @throws IOException on a malformed record or a checksum error, with its line number
+     */
+    public static FirmwareImage parse(Reader in) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        FirmwareImage image = new FirmwareImage();
+        byte[] record = new byte[5 + 255];
+        long base = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0)
+                continue;
+            if (line.charAt(0) != ':' || line.length() < 11 || line.length() % 2 == 0)
+                throw new IOException("HEX: Invalid record in line " + lineNumber);
+            int length = (line.length() - 1) / 2;
+            if (length > record.length)
+                throw new IOException("HEX: Record too long in line " + lineNumber);
+            int sum = 0;
+            for (int i = 0; i < length; i++) {
+                record[i] = (byte) parseByte(line, 1 + 2 * i, lineNumber);
+                sum += record[i];
+            }
+            int count = record[0] & 0xFF;
+            if (count + 5 != length)
+                throw new IOException("HEX: Wrong length of record in line " + lineNumber);
+            if ((sum & 0xFF) != 0)
+                throw new IOException("HEX: Checksum error in line " + lineNumber);
+            int offset = ((record[1] & 0xFF) << 8) | (record[2] & 0xFF);
+            int type = record[3] & 0xFF;
+            switch (type) {
+                case DATA:
+                    image.append(base + offset, record, 4, count);
+                    break;
+                case END_OF_FILE:
+                    image.flush();
+                    return image;
+                case EXTENDED_SEGMENT_ADDRESS:
+                    base = (long) getWord(record, count, lineNumber) << 4;
+                    break;
+                case EXTENDED_LINEAR_ADDRESS:
+                    base = (long) getWord(record, count, lineNumber) << 16;
+                    break;
+                case START_SEGMENT_ADDRESS:
+                    if (count != 4)
+                        throw new IOException("HEX: Invalid start address in line " + lineNumber);
+                    image.setEntryPoint(((long) getWord(record, 2, lineNumber) << 4) + (((record[6] & 0xFF) << 8) | (record[7] & 0xFF)));
+                    break;
+                case START_LINEAR_ADDRESS:
+                    if (count != 4)
+                        throw new IOException("HEX: Invalid start address in line " + lineNumber);
+                    image.setEntryPoint(((long) getWord(record, 2, lineNumber) << 16) | (((record[6] & 0xFF) << 8) | (record[7] & 0xFF)));
+                    break;
+                default:
+                    throw new IOException("HEX: Unknown record type " + type + " in line " + lineNumber);
+            }
+        }
+        throw new IOException("HEX: End of file record missing");
+    }
+
+    private static int getWord(byte[] record, int count, int lineNumber) throws IOException {
+        if (count < 2)
+            throw new IOException("HEX: Invalid address record in line " + lineNumber);
+        return ((record[4] & 0xFF) << 8) | (record[5] & 0xFF);
+    }
+
+    static int parseByte(String line, int index, int lineNumber) throws IOException {
+        int high = Character.digit(line.charAt(index), 16);
+        int low = Character.digit(line.charAt(index + 1), 16);
+        if (high < 0 || low < 0)
+            throw new IOException("Invalid hex digit in line " + lineNumber);
+        return (high << 4) | low;
+    }
+}
@@ -0,0 +1,97 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Pull stream of a memory range, read block by block from the bootloader. Nothing is read
+ * ahead: every call of {@link #next()} issues one READ, so a slow consumer (hashing, compression,
+ * an upload) slows the readout down instead of piling up data, and one block of memory is used
+ * regardless of the size of the range. Several consumers can be chained on the returned blocks.
+ */
+public class MemoryReader implements Closeable {
+    private final Bootloader mBootloader;
+    private final BufferPool mBufferPool;
+    private final ByteBuffer mBlock;
+    private final int blockSize;
+    private final long end;
+    private long address;
+    private int page;
+    private boolean closed;
+
+    MemoryReader(Bootloader bootloader, BufferPool pool, long address, long length, int blockSize) {
+        mBootloader = bootloader;
+        mBufferPool = pool;
+        mBlock = pool.acquire(blockSize);
+        this.blockSize = blockSize;
+        this.address = address;
+        this.end = address + length;
+    }
+
+    public boolean hasNext() {
+        return address < end;
+    }
+
+    /**
+     * Read the next block. The buffer is reused by the following call, consumers which need the
+     * data longer have to copy it.
+     *
+     * @return the block from position to limit, null at the end of the range
+     * @throws IOException if the link is broken or the block cannot be read after all retries
+     */
+    public ByteBuffer next() throws IOException {
+        if (address >= end)
+            return null;
+        int len = (int) Math.min(blockSize, end - address);
+        mBlock.clear();
+        if (!mBootloader.readPageWithRetry(address, page, mBlock.array(), len))
+            throw new IOException(String.format("READ: Cannot read PAGE %d at 0x%08x", page, address));
+        mBlock.limit(len);
+        address += len;
+        page++;
+        return mBlock;
+    }
+
+    /**
+     * Address of the next block.
+     */
+    public long getAddress() {
+        return address;
+    }
+
+    /**
+     * Number of blocks read so far.
+     */
+    public int getPage() {
+        return page;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        address = end;
+        mBufferPool.release(mBlock);
+    }
+}
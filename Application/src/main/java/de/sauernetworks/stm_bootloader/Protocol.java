@@ -24,6 +24,9 @@ public interface Protocol {
 
     int STM32_READ_TIMEOUT = 2000; ///< Read timeout in milliseconds
     long STM32_EER_TIMEOUT = 15000; ///< Read timeout for EER command in milliseconds
+    int STM32_EER_MAX_PAGES = 512; ///< Pages per Extended Erase page list, limited by the receive buffer of the bootloader
+    int STM32_ERASE_MAX_PAGES = 255; ///< Pages per Erase page list, N = 0xFF is the global erase
+    int STM32_ERASE_PAGE_LIMIT = 256; ///< Pages addressable by the Erase Command, the page numbers are single bytes
 
     byte STM32_INIT = 0x7F;
 
@@ -36,6 +39,7 @@ public interface Protocol {
     byte STM32_READ_COMMAND = 0x11;
     byte STM32_GO_COMMAND = 0x21;
     byte STM32_WRITE_COMMAND = 0x31;
+    byte STM32_ERASE_COMMAND = 0x43;
     byte STM32_EER_COMMAND = 0x44;
 
 }
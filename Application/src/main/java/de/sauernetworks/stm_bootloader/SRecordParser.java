@@ -0,0 +1,101 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming parser of Motorola S-record files (S19, S28 and S37). Data records are read line
+ * by line and appended to a {@link FirmwareImage}, header and count records are checked only.
+ * The file has to end with a termination record (S7, S8 or S9), so a truncated file is rejected.
+ */
+public class SRecordParser {
+    private SRecordParser() {
+    }
+
+    /**
+     * @throws IOException on a malformed record or a checksum error, with its line number
+     */
+    public static FirmwareImage parse(Reader in) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        FirmwareImage image = new FirmwareImage();
+        byte[] record = new byte[1 + 255];
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0)
+                continue;
+            if (line.charAt(0) != 'S' || line.length() < 10 || line.length() % 2 != 0)
+                throw new IOException("SREC: Invalid record in line " + lineNumber);
+            int type = Character.digit(line.charAt(1), 10);
+            int length = (line.length() - 2) / 2;
+            if (length > record.length)
+                throw new IOException("SREC: Record too long in line " + lineNumber);
+            int sum = 0;
+            for (int i = 0; i < length; i++) {
+                record[i] = (byte) IntelHexParser.parseByte(line, 2 + 2 * i, lineNumber);
+                sum += record[i];
+            }
+            if ((record[0] & 0xFF) + 1 != length)
+                throw new IOException("SREC: Wrong length of record in line " + lineNumber);
+            if ((sum & 0xFF) != 0xFF)
+                throw new IOException("SREC: Checksum error in line " + lineNumber);
+            int addressLength;
+            switch (type) {
+                case 0: // header
+                case 5: // record count
+                case 6:
+                    continue;
+                case 1:
+                case 9:
+                    addressLength = 2;
+                    break;
+                case 2:
+                case 8:
+                    addressLength = 3;
+                    break;
+                case 3:
+                case 7:
+                    addressLength = 4;
+                    break;
+                default:
+                    throw new IOException("SREC: Unknown record type S" + line.charAt(1) + " in line " + lineNumber);
+            }
+            int count = (record[0] & 0xFF) - addressLength - 1;
+            if (count < 0)
+                throw new IOException("SREC: Wrong length of record in line " + lineNumber);
+            long address = 0;
+            for (int i = 1; i <= addressLength; i++)
+                address = (address << 8) | (record[i] & 0xFF);
+            if (type <= 3) {
+                image.append(address, record, 1 + addressLength, count);
+            } else {
+                image.setEntryPoint(address);
+                image.flush();
+                return image;
+            }
+        }
+        throw new IOException("SREC: Termination record missing");
+    }
+}
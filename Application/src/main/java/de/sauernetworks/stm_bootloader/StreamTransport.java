@@ -0,0 +1,129 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport on top of a plain InputStream/OutputStream pair, f.e. the
+ * streams of a connected BluetoothSocket.
+ *
+ * A dedicated reader thread blocks on the InputStream and fills a
+ * {@link ByteRingBuffer}, so waiting for an answer costs no CPU and wakes
+ * up as soon as the bytes arrive.
+ */
+public class StreamTransport implements Transport {
+    private static final int RING_BUFFER_SIZE = 16384;
+
+    private final InputStream mmInStream;
+    private final OutputStream mmOutStream;
+    private final ByteRingBuffer mRingBuffer;
+    private final ReaderThread mReaderThread;
+    private byte[] gatherBuffer;
+
+    public StreamTransport(InputStream mmInStream, OutputStream mmOutStream) {
+        this.mmInStream = mmInStream;
+        this.mmOutStream = mmOutStream;
+        gatherBuffer = new byte[Protocol.STM32_BYTE_COUNT + 2];
+        mRingBuffer = new ByteRingBuffer(RING_BUFFER_SIZE);
+        mReaderThread = new ReaderThread();
+        mReaderThread.start();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len, long timeoutMillis) throws IOException {
+        return mRingBuffer.read(b, off, len, timeoutMillis);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mmOutStream.write(b, off, len);
+    }
+
+    @Override
+    public void write(ByteBuffer[] frames) throws IOException {
+        int length = 0;
+        for (ByteBuffer frame : frames)
+            length += frame.remaining();
+        if (gatherBuffer.length < length)
+            gatherBuffer = new byte[length];
+        int offset = 0;
+        for (ByteBuffer frame : frames) {
+            int remaining = frame.remaining();
+            frame.get(gatherBuffer, offset, remaining);
+            offset += remaining;
+        }
+        mmOutStream.write(gatherBuffer, 0, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mmOutStream.flush();
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mRingBuffer.available();
+    }
+
+    @Override
+    public void drain() throws IOException {
+        mRingBuffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRingBuffer.close(null);
+        mReaderThread.interrupt();
+        mmInStream.close();
+        mmOutStream.close();
+    }
+
+    /**
+     * Moves everything received on the InputStream into the ring buffer
+     * until the stream ends or fails.
+     */
+    private class ReaderThread extends Thread {
+        ReaderThread() {
+            super("TransportReader");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[1024];
+            try {
+                while (true) {
+                    int numRead = mmInStream.read(chunk);
+                    if (numRead < 0) {
+                        mRingBuffer.close(new IOException("End of stream"));
+                        return;
+                    }
+                    mRingBuffer.write(chunk, 0, numRead);
+                }
+            } catch (IOException e) {
+                mRingBuffer.close(e);
+            }
+        }
+    }
+}
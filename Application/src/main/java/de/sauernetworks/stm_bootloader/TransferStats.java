@@ -0,0 +1,161 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+/**
+ * Counters of one read or write session of the {@link Bootloader}.
+ */
+public class TransferStats {
+    private final BufferPool mBufferPool;
+    private long allocationsAtStart;
+    private long allocations;
+    private int pages;
+    private long packets;
+    private long bytesSent;
+    private long idleMillis;
+    private int retries;
+    private int skippedPages;
+    private long bytesSaved;
+    private int failedResyncs;
+    private long startMillis;
+    private long endMillis;
+
+    public TransferStats(BufferPool pool) {
+        mBufferPool = pool;
+    }
+
+    public void reset() {
+        allocationsAtStart = mBufferPool.getAllocationCount();
+        allocations = 0;
+        pages = 0;
+        packets = 0;
+        bytesSent = 0;
+        idleMillis = 0;
+        retries = 0;
+        skippedPages = 0;
+        bytesSaved = 0;
+        failedResyncs = 0;
+        startMillis = System.currentTimeMillis();
+        endMillis = 0;
+    }
+
+    void addPage() {
+        pages++;
+    }
+
+    void addPacket(int length) {
+        packets++;
+        bytesSent += length;
+    }
+
+    void addIdle(long millis) {
+        idleMillis += millis;
+    }
+
+    void addRetry() {
+        retries++;
+    }
+
+    void addSkipped(int pages, long bytes) {
+        skippedPages += pages;
+        bytesSaved += bytes;
+    }
+
+    void addFailedResync() {
+        failedResyncs++;
+    }
+
+    void finish() {
+        endMillis = System.currentTimeMillis();
+        allocations = mBufferPool.getAllocationCount() - allocationsAtStart;
+    }
+
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * Number of writes on the link, every write is likely one radio packet.
+     */
+    public long getPackets() {
+        return packets;
+    }
+
+    public float getPacketsPerPage() {
+        return pages > 0 ? (float) packets / pages : 0;
+    }
+
+    /**
+     * Buffers which had to be allocated during the session.
+     */
+    public long getAllocations() {
+        return endMillis > 0 ? allocations : mBufferPool.getAllocationCount() - allocationsAtStart;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Time spent in inter-frame gaps.
+     */
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * Idle time removed compared to the former fixed delay before every page.
+     */
+    public long getIdleMillisSaved() {
+        return pages * FramePacer.LEGACY_PAGE_DELAY - idleMillis;
+    }
+
+    /**
+     * Transactions which were issued again after a NACK, a timeout or an invalid answer.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Blocks which did not have to be sent, f.e. 0xFF blocks on erased flash.
+     */
+    public int getSkippedPages() {
+        return skippedPages;
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    public int getFailedResyncs() {
+        return failedResyncs;
+    }
+
+    public long getDurationMillis() {
+        return (endMillis > 0 ? endMillis : System.currentTimeMillis()) - startMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d pages in %d ms, %d packets (%.2f per page), %d bytes sent, %d buffer allocations, %d ms idle, %d retries, %d pages skipped",
+                pages, getDurationMillis(), packets, getPacketsPerPage(), bytesSent, getAllocations(), idleMillis, retries, skippedPages);
+    }
+}
@@ -0,0 +1,152 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.nio.ByteBuffer;
+
+/**
+ * WRITE frames of a firmware image, encoded once before anything is sent. For every block the
+ * command, the address frame and the data frame (N, data, 0xFF filling and checksum) follow each
+ * other in one contiguous buffer, so the send loop only hands out slices of it and waits for the
+ * ACKs. A plan does not change after it is compiled and can be sent to any number of targets.
+ */
+public final class TransmissionPlan {
+    private static final int COMMAND_LENGTH = 2;
+    private static final int ADDRESS_LENGTH = 5;
+
+    private final ByteBuffer frames;
+    private final int[] offsets;
+    private final long address;
+    private final int blockSize;
+    private final int size;
+
+    private TransmissionPlan(ByteBuffer frames, int[] offsets, long address, int blockSize, int size) {
+        this.frames = frames;
+        this.offsets = offsets;
+        this.address = address;
+        this.blockSize = blockSize;
+        this.size = size;
+    }
+
+    /**
+     * Encode the frames to write the remaining bytes of firmware to address in blocks of blockSize.
+     *
+     * @param device target to check the range against, null to skip the check
+     * @throws IllegalArgumentException if the address or the block size is not a multiple of 4
+     *                                  or the range is not in the flash or RAM of the device
+     */
+    public static TransmissionPlan compile(long address, ByteBuffer firmware, int blockSize, Device device) {
+        int size = firmware.remaining();
+        if ((address & 3) != 0 || (blockSize & 3) != 0 || blockSize <= 0 || blockSize > Protocol.STM32_BYTE_COUNT)
+            throw new IllegalArgumentException(String.format("Invalid address 0x%08x or block size %d", address, blockSize));
+        if (device != null && !(address >= device.getFlashStart() && address + size <= device.getFlashEnd())
+                && !(address >= device.getRamStart() && address + size <= device.getRamEnd()))
+            throw new IllegalArgumentException(String.format("0x%08x to 0x%08x is not in the flash or RAM of %s", address, address + size, device.getDeviceName()));
+        int blocks = (size + blockSize - 1) / blockSize;
+        int padded = (size + 3) & ~3;
+        ByteBuffer frames = ByteBuffer.allocate(blocks * (COMMAND_LENGTH + ADDRESS_LENGTH + 2) + padded);
+        int[] offsets = new int[blocks + 1];
+        int start = firmware.position();
+        for (int block = 0; block < blocks; block++) {
+            offsets[block] = frames.position();
+            int offset = block * blockSize;
+            int count = Math.min(blockSize, size - offset);
+            int len = (count + 3) & ~3;
+            long blockAddress = address + offset;
+            frames.put(Protocol.STM32_WRITE_COMMAND).put((byte) ~Protocol.STM32_WRITE_COMMAND);
+            byte checksum = 0;
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                byte b = (byte) (blockAddress >> shift);
+                frames.put(b);
+                checksum ^= b;
+            }
+            frames.put(checksum);
+            checksum = (byte) (len - 1);
+            frames.put(checksum);
+            for (int i = 0; i < len; i++) {
+                byte b = i < count ? firmware.get(start + offset + i) : (byte) 0xFF;
+                frames.put(b);
+                checksum ^= b;
+            }
+            frames.put(checksum);
+        }
+        offsets[blocks] = frames.position();
+        frames.flip();
+        return new TransmissionPlan(frames.asReadOnlyBuffer(), offsets, address, blockSize, size);
+    }
+
+    /**
+     * A view of the plan for one sender, the frame methods move it to the requested frame.
+     */
+    public ByteBuffer view() {
+        return frames.duplicate();
+    }
+
+    /**
+     * Command, address and data frame of block, to be sent without waiting for the ACKs in between.
+     */
+    public ByteBuffer blockFrames(ByteBuffer view, int block) {
+        return select(view, offsets[block], offsets[block + 1]);
+    }
+
+    public ByteBuffer commandFrame(ByteBuffer view, int block) {
+        return select(view, offsets[block], offsets[block] + COMMAND_LENGTH);
+    }
+
+    public ByteBuffer addressFrame(ByteBuffer view, int block) {
+        int offset = offsets[block] + COMMAND_LENGTH;
+        return select(view, offset, offset + ADDRESS_LENGTH);
+    }
+
+    public ByteBuffer dataFrame(ByteBuffer view, int block) {
+        return select(view, offsets[block] + COMMAND_LENGTH + ADDRESS_LENGTH, offsets[block + 1]);
+    }
+
+    private static ByteBuffer select(ByteBuffer view, int from, int to) {
+        view.limit(to).position(from);
+        return view;
+    }
+
+    public int getBlockCount() {
+        return offsets.length - 1;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Number of firmware bytes in the plan, without the framing.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Number of bytes of all frames.
+     */
+    public int getLength() {
+        return frames.limit();
+    }
+}
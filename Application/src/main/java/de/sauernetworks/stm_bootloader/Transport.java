@@ -0,0 +1,68 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte link between the {@link Bootloader} and a STM32 USART bootloader.
+ * Implementations exist for a Bluetooth RFCOMM socket, an in-memory pipe
+ * and a capturing decorator, so the protocol engine does not depend on
+ * where the bytes actually go.
+ */
+public interface Transport {
+
+    /**
+     * Read up to len bytes, waiting no longer than timeoutMillis for them.
+     *
+     * @return number of bytes read, less than len if the deadline passed
+     * @throws IOException if the link is broken or closed
+     */
+    int read(byte[] b, int off, int len, long timeoutMillis) throws IOException;
+
+    /**
+     * Write a single frame.
+     */
+    void write(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Write all remaining bytes of the given buffers as one contiguous
+     * transmission (gathered write).
+     */
+    void write(ByteBuffer[] frames) throws IOException;
+
+    /**
+     * Push out any bytes buffered by the transport.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Number of bytes that can be read without waiting.
+     */
+    int available() throws IOException;
+
+    /**
+     * Discard all bytes received so far.
+     */
+    void drain() throws IOException;
+
+    void close() throws IOException;
+}
@@ -48,7 +48,7 @@ public class FileDialog {
     private ListenerList<DirectorySelectedListener> dirListenerList = new ListenerList<FileDialog.DirectorySelectedListener>();
     private final Activity activity;
     private boolean selectDirectoryOption;
-    private String fileEndsWith;
+    private String[] fileEndsWith;
 
     /**
      * @param activity
@@ -149,7 +149,9 @@ public class FileDialog {
                     if (!sel.canRead()) return false;
                     if (selectDirectoryOption) return sel.isDirectory();
                     else {
-                        boolean endsWith = fileEndsWith != null ? filename.toLowerCase().endsWith(fileEndsWith) : true;
+                        boolean endsWith = fileEndsWith == null;
+                        for (int i = 0; !endsWith && i < fileEndsWith.length; i++)
+                            endsWith = filename.toLowerCase().endsWith(fileEndsWith[i]);
                         return endsWith || sel.isDirectory();
                     }
                 }
@@ -169,8 +171,14 @@ public class FileDialog {
         else return new File(currentPath, fileChosen);
     }
 
-    public void setFileEndsWith(String fileEndsWith) {
-        this.fileEndsWith = fileEndsWith != null ? fileEndsWith.toLowerCase() : fileEndsWith;
+    public void setFileEndsWith(String... fileEndsWith) {
+        if (fileEndsWith != null) {
+            this.fileEndsWith = new String[fileEndsWith.length];
+            for (int i = 0; i < fileEndsWith.length; i++)
+                this.fileEndsWith[i] = fileEndsWith[i].toLowerCase();
+        } else {
+            this.fileEndsWith = null;
+        }
     }
 }
 
@@ -26,6 +26,7 @@ import android.util.Log;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class Logger {
 
@@ -37,7 +38,7 @@ public class Logger {
     boolean syslog = true;
     int verbose = 9;
 
-    FileOutputStream osLog;
+    OutputStream osLog;
 
     public Logger(Context mContext, boolean enabled, boolean syslog, String tag, int verbose) {
         this.mContext = mContext;
@@ -55,6 +56,16 @@ public class Logger {
         }
     }
 
+    /**
+     * Logger writing into the given stream only, without syslog and without
+     * a Context. Used when the bootloader runs off-device.
+     */
+    public Logger(OutputStream osLog, int verbose) {
+        this.osLog = osLog;
+        this.syslog = false;
+        this.verbose = verbose;
+    }
+
     private int openLogFile(boolean append) {
         String path = Environment.getExternalStorageDirectory() + "//STM32//";
         String filepath = path + filename + "." + this.fileext;
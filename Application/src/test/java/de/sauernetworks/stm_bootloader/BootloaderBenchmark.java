@@ -0,0 +1,89 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import de.sauernetworks.stm32_bluetooth_flashloader.Constants;
+import de.sauernetworks.tools.Logger;
+
+/**
+ * Compares stop-and-wait WRITE with pipelined WRITE against the
+ * {@link BootloaderSimulator} at several round trip times.
+ *
+ * Runs on the host from the unit test classes:
+ * java de.sauernetworks.stm_bootloader.BootloaderBenchmark [pages] [window]
+ */
+public class BootloaderBenchmark {
+    private static final long[] ROUND_TRIP_MILLIS = { 0, 5, 20, 50 };
+    private static final int DEVICE_ID = 0x440;
+
+    public static void main(String[] args) throws IOException {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int window = args.length > 1 ? Integer.parseInt(args[1]) : Bootloader.DEFAULT_PIPELINE_WINDOW;
+        byte[] image = new byte[pages * Protocol.STM32_BYTE_COUNT];
+        new Random(1).nextBytes(image);
+        File file = File.createTempFile("benchmark", Constants.FIRMWARE_EXTENSION);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(image);
+        out.close();
+
+        System.out.println(String.format("%d pages, pipeline window %d", pages, window));
+        System.out.println("RTT ms   stop-and-wait ms   pipelined ms   speedup");
+        for (long rtt : ROUND_TRIP_MILLIS) {
+            long serial = run(file, image, rtt, 0);
+            long pipelined = run(file, image, rtt, window);
+            System.out.println(String.format("%6d   %16d   %12d   %6.1fx", rtt, serial, pipelined,
+                    (double) serial / Math.max(1, pipelined)));
+        }
+    }
+
+    /**
+     * Write the image once and verify it.
+     *
+     * @return duration of the WRITE in ms
+     */
+    public static long run(File file, byte[] image, long roundTripMillis, int window) throws IOException {
+        PipeTransport host = new PipeTransport();
+        BootloaderSimulator simulator = new BootloaderSimulator(DEVICE_ID, host.getPeer());
+        simulator.setRoundTripTime(roundTripMillis * 1000);
+        simulator.start();
+        try {
+            Bootloader bootloader = new Bootloader(host, new Logger(System.err, 0), null);
+            bootloader.setPipelineWindow(window);
+            if (!bootloader.init() || !bootloader.getCommands() || !bootloader.getDeviceInfo())
+                throw new IOException("Simulator did not answer");
+            if (!bootloader.writeMemory(file.getPath()))
+                throw new IOException("WRITE failed");
+            byte[] written = simulator.getMemory(simulator.getDevice().getFlashStart(), image.length);
+            if (!Arrays.equals(written, image))
+                throw new IOException("Flash content differs");
+            return bootloader.getTransferStats().getDurationMillis();
+        } finally {
+            simulator.stop();
+            host.close();
+        }
+    }
+}
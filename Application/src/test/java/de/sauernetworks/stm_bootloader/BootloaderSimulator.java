@@ -0,0 +1,688 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Software STM32 target speaking the AN3155 USART bootloader protocol on a
+ * {@link Transport}, usually the peer end of a {@link PipeTransport}.
+ * The memory model (flash, RAM, option bytes, system memory) is sized from
+ * a {@link Device} entry of the {@link Devices} table.
+ *
+ * Link and target timings can be configured, so the engine can be
+ * benchmarked on the host without a real board:
+ * <ul>
+ * <li>round trip time, added once to every response</li>
+ * <li>per byte latency and bandwidth, added to every byte in both directions</li>
+ * <li>page write time and page/mass erase time of the flash</li>
+ * <li>a rate of received bytes which get lost, to exercise error recovery</li>
+ * <li>lost final ACKs of WRITE commands</li>
+ * </ul>
+ * Like the real parts, F0, F1 and F3 targets answer a WRITE with NACK when a
+ * half-word which is not erased would be programmed (PGERR).
+ */
+public class BootloaderSimulator {
+    private static final long POLL_TIMEOUT = 100;
+    private static final byte[] DEFAULT_COMMANDS = {
+            Protocol.STM32_GET_COMMAND, Protocol.STM32_GVRP_COMMAND, Protocol.STM32_GET_ID_COMMAND,
+            Protocol.STM32_READ_COMMAND, Protocol.STM32_GO_COMMAND, Protocol.STM32_WRITE_COMMAND,
+            Protocol.STM32_EER_COMMAND };
+    private static final int[] HALF_WORD_PROGRAMMING_IDS = {
+            0x440, 0x444, 0x445, 0x448, // F0
+            0x410, 0x412, 0x414, 0x418, 0x420, 0x428, 0x430, // F1
+            0x422, 0x432, 0x438, 0x439 }; // F3
+
+    private final Device mDevice;
+    private final Transport mTransport;
+    private final Region[] regions;
+    private final Region flash;
+    private final boolean halfWordProgramming;
+
+    private byte version = 0x31;
+    private byte[] commands = DEFAULT_COMMANDS;
+
+    private long roundTripNanos;
+    private long byteLatencyNanos;
+    private long bandwidth;
+    private long pageWriteNanos;
+    private long pageEraseNanos;
+    private long massEraseNanos = -1;
+    private double dropRate;
+    private Random dropRandom;
+    private int dropWriteAck;
+    private int writeCount;
+
+    private volatile boolean running;
+    private boolean synced;
+    private Thread mThread;
+    private Downlink mDownlink;
+    private long uplinkFreeNanos;
+    private long downlinkFreeNanos;
+
+    private volatile long jumpAddress = -1;
+    private long bytesReceived;
+    private long bytesSent;
+    private int commandCount;
+    private int nackCount;
+    private int pagesWritten;
+    private int pagesErased;
+    private int eraseCount;
+    private int massEraseCount;
+    private int bytesDropped;
+
+    public BootloaderSimulator(Device device, Transport transport) {
+        mDevice = device;
+        mTransport = transport;
+        flash = new Region(device.getFlashStart(), device.getFlashEnd(), true, true);
+        regions = new Region[] {
+                flash,
+                new Region(device.getRamStart(), device.getRamEnd(), true, false),
+                new Region(device.getOptionStart(), device.getOptionEnd() + 1, true, false),
+                new Region(device.getMemStart(), device.getMemEnd(), false, false) };
+        boolean halfWord = false;
+        for (int id : HALF_WORD_PROGRAMMING_IDS)
+            halfWord |= id == device.getDeviceID();
+        halfWordProgramming = halfWord;
+    }
+
+    public BootloaderSimulator(int deviceID, Transport transport) {
+        this(new Devices().getDevice(deviceID), transport);
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        synced = false;
+        mDownlink = new Downlink();
+        mDownlink.start();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "BootloaderSimulator");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+        if (mDownlink != null) {
+            mDownlink.interrupt();
+            mDownlink = null;
+        }
+    }
+
+    private void serve() {
+        byte[] cmd = new byte[2];
+        try {
+            while (running) {
+                if (!receive(cmd, 1))
+                    continue;
+                if (!synced) {
+                    if (cmd[0] == Protocol.STM32_INIT) {
+                        synced = true;
+                        respond(Protocol.STM32_ACK);
+                    }
+                    continue;
+                }
+                if (cmd[0] == Protocol.STM32_INIT) {
+                    // Already initialised, a real bootloader answers with NACK
+                    nack();
+                    continue;
+                }
+                if (!receive(cmd, 1, 1))
+                    continue;
+                commandCount++;
+                if (cmd[1] != (byte) ~cmd[0] || !isSupported(cmd[0])) {
+                    nack();
+                    continue;
+                }
+                switch (cmd[0]) {
+                    case Protocol.STM32_GET_COMMAND:
+                        handleGet();
+                        break;
+                    case Protocol.STM32_GVRP_COMMAND:
+                        respond(Protocol.STM32_ACK, version, (byte) 0x00, (byte) 0x00, Protocol.STM32_ACK);
+                        break;
+                    case Protocol.STM32_GET_ID_COMMAND:
+                        int id = mDevice.getDeviceID();
+                        respond(Protocol.STM32_ACK, (byte) 1, (byte) (id >> 8), (byte) id, Protocol.STM32_ACK);
+                        break;
+                    case Protocol.STM32_READ_COMMAND:
+                        handleRead();
+                        break;
+                    case Protocol.STM32_WRITE_COMMAND:
+                        handleWrite();
+                        break;
+                    case Protocol.STM32_GO_COMMAND:
+                        handleGo();
+                        break;
+                    case Protocol.STM32_ERASE_COMMAND:
+                        handleErase();
+                        break;
+                    case Protocol.STM32_EER_COMMAND:
+                        handleExtendedErase();
+                        break;
+                    default:
+                        nack();
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            running = false;
+        }
+    }
+
+    private void handleGet() throws IOException {
+        byte[] answer = new byte[commands.length + 4];
+        answer[0] = Protocol.STM32_ACK;
+        answer[1] = (byte) commands.length;
+        answer[2] = version;
+        System.arraycopy(commands, 0, answer, 3, commands.length);
+        answer[answer.length - 1] = Protocol.STM32_ACK;
+        respond(answer);
+    }
+
+    private void handleRead() throws IOException {
+        respond(Protocol.STM32_ACK);
+        long address = receiveAddress();
+        Region region = address < 0 ? null : findRegion(address, 1);
+        if (region == null || !region.readable) {
+            nack();
+            return;
+        }
+        respond(Protocol.STM32_ACK);
+        byte[] n = new byte[2];
+        if (!receive(n, 2))
+            return;
+        int count = (n[0] & 0xFF) + 1;
+        if (n[1] != (byte) ~n[0] || findRegion(address, count) != region) {
+            nack();
+            return;
+        }
+        byte[] answer = new byte[count + 1];
+        answer[0] = Protocol.STM32_ACK;
+        System.arraycopy(region.data, (int) (address - region.start), answer, 1, count);
+        respond(answer);
+    }
+
+    private void handleWrite() throws IOException {
+        respond(Protocol.STM32_ACK);
+        long address = receiveAddress();
+        Region region = address < 0 ? null : findRegion(address, 1);
+        if (region == null || !region.writable) {
+            nack();
+            return;
+        }
+        respond(Protocol.STM32_ACK);
+        byte[] n = new byte[1];
+        if (!receive(n, 1))
+            return;
+        int count = (n[0] & 0xFF) + 1;
+        byte[] data = new byte[count + 1];
+        if (!receive(data, count + 1))
+            return;
+        byte checksum = n[0];
+        for (int i = 0; i < count; i++)
+            checksum ^= data[i];
+        if (checksum != data[count] || findRegion(address, count) != region) {
+            nack();
+            return;
+        }
+        int offset = (int) (address - region.start);
+        if (region.flash && halfWordProgramming && !isProgrammable(region.data, offset, data, count)) {
+            nack();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (region.flash)
+                region.data[offset + i] &= data[i]; // flash can only clear bits
+            else
+                region.data[offset + i] = data[i];
+        }
+        if (region.flash) {
+            pagesWritten++;
+            busy(pageWriteNanos);
+        }
+        if (dropWriteAck > 0 && ++writeCount % dropWriteAck == 0)
+            return;
+        respond(Protocol.STM32_ACK);
+    }
+
+    /**
+     * Only erased half-words can be programmed, writing 0xFFFF leaves a half-word alone.
+     */
+    private static boolean isProgrammable(byte[] memory, int offset, byte[] data, int count) {
+        for (int i = 0; i < count; i += 2) {
+            boolean erased = memory[offset + i] == (byte) 0xFF && memory[offset + i + 1] == (byte) 0xFF;
+            boolean skipped = data[i] == (byte) 0xFF && data[i + 1] == (byte) 0xFF;
+            if (!erased && !skipped)
+                return false;
+        }
+        return true;
+    }
+
+    private void handleGo() throws IOException {
+        respond(Protocol.STM32_ACK);
+        long address = receiveAddress();
+        if (address < 0 || findRegion(address, 1) == null) {
+            nack();
+            return;
+        }
+        jumpAddress = address;
+        // Target runs the application now, a new INIT is needed
+        synced = false;
+        respond(Protocol.STM32_ACK);
+    }
+
+    private void handleErase() throws IOException {
+        respond(Protocol.STM32_ACK);
+        byte[] n = new byte[1];
+        if (!receive(n, 1))
+            return;
+        if (n[0] == (byte) 0xFF) {
+            byte[] checksum = new byte[1];
+            if (!receive(checksum, 1))
+                return;
+            if (checksum[0] != 0x00) {
+                nack();
+                return;
+            }
+            massErase();
+            respond(Protocol.STM32_ACK);
+            return;
+        }
+        int count = (n[0] & 0xFF) + 1;
+        byte[] pages = new byte[count + 1];
+        if (!receive(pages, pages.length))
+            return;
+        byte checksum = n[0];
+        for (int i = 0; i < count; i++)
+            checksum ^= pages[i];
+        if (checksum != pages[count]) {
+            nack();
+            return;
+        }
+        eraseCount++;
+        for (int i = 0; i < count; i++) {
+            if (!erasePage(pages[i] & 0xFF)) {
+                nack();
+                return;
+            }
+        }
+        respond(Protocol.STM32_ACK);
+    }
+
+    private void handleExtendedErase() throws IOException {
+        respond(Protocol.STM32_ACK);
+        byte[] n = new byte[2];
+        if (!receive(n, 2))
+            return;
+        int count = ((n[0] & 0xFF) << 8) | (n[1] & 0xFF);
+        if (count >= 0xFFF0) {
+            byte[] checksum = new byte[1];
+            if (!receive(checksum, 1))
+                return;
+            if (checksum[0] != (byte) (n[0] ^ n[1]) || count < 0xFFFD) {
+                nack();
+                return;
+            }
+            massErase();
+            respond(Protocol.STM32_ACK);
+            return;
+        }
+        count++;
+        byte[] pages = new byte[count * 2 + 1];
+        if (!receive(pages, pages.length))
+            return;
+        byte checksum = (byte) (n[0] ^ n[1]);
+        for (int i = 0; i < pages.length - 1; i++)
+            checksum ^= pages[i];
+        if (checksum != pages[pages.length - 1]) {
+            nack();
+            return;
+        }
+        eraseCount++;
+        for (int i = 0; i < count; i++) {
+            int page = ((pages[i * 2] & 0xFF) << 8) | (pages[i * 2 + 1] & 0xFF);
+            if (!erasePage(page)) {
+                nack();
+                return;
+            }
+        }
+        respond(Protocol.STM32_ACK);
+    }
+
+    private void massErase() {
+        Arrays.fill(flash.data, (byte) 0xFF);
+        int pageCount = getPageCount();
+        pagesErased += pageCount;
+        massEraseCount++;
+        busy(massEraseNanos >= 0 ? massEraseNanos : pageCount * pageEraseNanos);
+    }
+
+    private boolean erasePage(int page) {
+        if (page < 0 || page >= getPageCount())
+            return false;
+        int from = (int) (mDevice.getErasePageStart(page) - flash.start);
+        int to = (int) (mDevice.getErasePageStart(page + 1) - flash.start);
+        Arrays.fill(flash.data, from, Math.min(to, flash.data.length), (byte) 0xFF);
+        pagesErased++;
+        busy(pageEraseNanos);
+        return true;
+    }
+
+    private boolean isSupported(byte command) {
+        for (byte c : commands)
+            if (c == command)
+                return true;
+        return false;
+    }
+
+    private Region findRegion(long address, int length) {
+        for (Region region : regions)
+            if (address >= region.start && address + length <= region.start + region.data.length)
+                return region;
+        return null;
+    }
+
+    /**
+     * @return received address or -1 on checksum error
+     */
+    private long receiveAddress() throws IOException {
+        byte[] buf = new byte[5];
+        if (!receive(buf, 5))
+            return -1;
+        if ((byte) (buf[0] ^ buf[1] ^ buf[2] ^ buf[3]) != buf[4])
+            return -1;
+        return ((buf[0] & 0xFFL) << 24) | ((buf[1] & 0xFFL) << 16) | ((buf[2] & 0xFFL) << 8) | (buf[3] & 0xFFL);
+    }
+
+    private boolean receive(byte[] b, int len) throws IOException {
+        return receive(b, 0, len);
+    }
+
+    /**
+     * Block until len bytes arrived. Returns false if the simulator was stopped.
+     */
+    private boolean receive(byte[] b, int off, int len) throws IOException {
+        int received = 0;
+        while (received < len) {
+            if (!running)
+                return false;
+            int n = mTransport.read(b, off + received, len - received, POLL_TIMEOUT);
+            received += dropRate > 0 ? drop(b, off + received, n) : n;
+        }
+        bytesReceived += len;
+        uplinkFreeNanos = Math.max(System.nanoTime(), uplinkFreeNanos) + len * getByteNanos();
+        sleepUntil(uplinkFreeNanos);
+        return true;
+    }
+
+    /**
+     * Lose bytes of a received chunk.
+     *
+     * @return number of bytes left in the chunk
+     */
+    private int drop(byte[] b, int off, int len) {
+        int kept = 0;
+        for (int i = 0; i < len; i++) {
+            if (dropRandom.nextDouble() < dropRate)
+                bytesDropped++;
+            else
+                b[off + kept++] = b[off + i];
+        }
+        return kept;
+    }
+
+    private void nack() throws IOException {
+        nackCount++;
+        respond(Protocol.STM32_NACK);
+    }
+
+    private void respond(byte... answer) throws IOException {
+        bytesSent += answer.length;
+        if (roundTripNanos == 0 && getByteNanos() == 0) {
+            mTransport.write(answer, 0, answer.length);
+            mTransport.flush();
+            return;
+        }
+        downlinkFreeNanos = Math.max(System.nanoTime() + roundTripNanos, downlinkFreeNanos)
+                + answer.length * getByteNanos();
+        mDownlink.queue.add(new Packet(downlinkFreeNanos, answer));
+    }
+
+    private void busy(long nanos) {
+        if (nanos > 0)
+            sleepUntil(System.nanoTime() + nanos);
+    }
+
+    private long getByteNanos() {
+        return byteLatencyNanos + (bandwidth > 0 ? 1000000000L / bandwidth : 0);
+    }
+
+    private static void sleepUntil(long deadlineNanos) {
+        long wait;
+        while ((wait = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.currentThread().isInterrupted())
+                return;
+        }
+    }
+
+    public int getPageCount() {
+        return mDevice.getErasePageCount();
+    }
+
+    /**
+     * Copy of the simulated memory at the given address.
+     */
+    public byte[] getMemory(long address, int length) {
+        Region region = findRegion(address, length);
+        if (region == null)
+            throw new IllegalArgumentException(String.format("0x%08x is not mapped", address));
+        int offset = (int) (address - region.start);
+        return Arrays.copyOfRange(region.data, offset, offset + length);
+    }
+
+    /**
+     * Preload the simulated memory, f.e. with a firmware to read out.
+     */
+    public void setMemory(long address, byte[] data) {
+        Region region = findRegion(address, data.length);
+        if (region == null)
+            throw new IllegalArgumentException(String.format("0x%08x is not mapped", address));
+        System.arraycopy(data, 0, region.data, (int) (address - region.start), data.length);
+    }
+
+    public void setVersion(byte version) {
+        this.version = version;
+    }
+
+    public void setCommands(byte[] commands) {
+        this.commands = commands.clone();
+    }
+
+    public void setRoundTripTime(long micros) {
+        roundTripNanos = micros * 1000;
+    }
+
+    public void setByteLatency(long micros) {
+        byteLatencyNanos = micros * 1000;
+    }
+
+    /**
+     * @param bytesPerSecond link bandwidth, 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        bandwidth = bytesPerSecond;
+    }
+
+    public void setPageWriteTime(long micros) {
+        pageWriteNanos = micros * 1000;
+    }
+
+    public void setPageEraseTime(long micros) {
+        pageEraseNanos = micros * 1000;
+    }
+
+    /**
+     * @param micros mass erase time, negative to use page count times page erase time
+     */
+    public void setMassEraseTime(long micros) {
+        massEraseNanos = micros < 0 ? -1 : micros * 1000;
+    }
+
+    /**
+     * Lose every received byte with the given probability. The seed makes a run repeatable.
+     */
+    public void setDropRate(double rate, long seed) {
+        dropRate = rate;
+        dropRandom = new Random(seed);
+    }
+
+    /**
+     * Lose the final ACK of every nth WRITE, after the data was programmed. 0 to answer every WRITE.
+     */
+    public void setDropWriteAck(int nth) {
+        dropWriteAck = nth;
+    }
+
+    public Device getDevice() {
+        return mDevice;
+    }
+
+    public long getJumpAddress() {
+        return jumpAddress;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    public int getNackCount() {
+        return nackCount;
+    }
+
+    public int getPagesWritten() {
+        return pagesWritten;
+    }
+
+    public int getPagesErased() {
+        return pagesErased;
+    }
+
+    /**
+     * @return Erase and Extended Erase commands with a page list
+     */
+    public int getEraseCount() {
+        return eraseCount;
+    }
+
+    public int getMassEraseCount() {
+        return massEraseCount;
+    }
+
+    public int getBytesDropped() {
+        return bytesDropped;
+    }
+
+    /**
+     * Contiguous memory area of the target.
+     */
+    private static class Region {
+        final long start;
+        final byte[] data;
+        final boolean writable;
+        final boolean flash;
+        final boolean readable = true;
+
+        Region(long start, long end, boolean writable, boolean flash) {
+            this.start = start;
+            this.data = new byte[(int) Math.max(0, end - start)];
+            this.writable = writable;
+            this.flash = flash;
+            Arrays.fill(data, flash ? (byte) 0xFF : 0);
+        }
+    }
+
+    private static class Packet {
+        final long deliverNanos;
+        final byte[] data;
+
+        Packet(long deliverNanos, byte[] data) {
+            this.deliverNanos = deliverNanos;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Delivers delayed responses, so several of them can be in flight like
+     * on a real link with latency.
+     */
+    private class Downlink extends Thread {
+        final LinkedBlockingQueue<Packet> queue = new LinkedBlockingQueue<Packet>();
+
+        Downlink() {
+            super("BootloaderSimulatorDownlink");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Packet packet = queue.take();
+                    sleepUntil(packet.deliverNanos);
+                    mTransport.write(packet.data, 0, packet.data.length);
+                    mTransport.flush();
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (IOException e) {
+                running = false;
+            }
+        }
+    }
+}
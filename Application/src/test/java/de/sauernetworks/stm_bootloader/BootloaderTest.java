@@ -0,0 +1,404 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import de.sauernetworks.tools.Logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes and verifies a firmware image through the {@link Bootloader} against the {@link BootloaderSimulator}.
+ */
+public class BootloaderTest {
+    private static final int DEVICE_ID = 0x410;
+    private static final byte[] ERASE_COMMANDS = {
+            Protocol.STM32_GET_COMMAND, Protocol.STM32_GVRP_COMMAND, Protocol.STM32_GET_ID_COMMAND,
+            Protocol.STM32_READ_COMMAND, Protocol.STM32_GO_COMMAND, Protocol.STM32_WRITE_COMMAND,
+            Protocol.STM32_ERASE_COMMAND };
+    private static final byte[] NO_ERASE_COMMANDS = {
+            Protocol.STM32_GET_COMMAND, Protocol.STM32_GVRP_COMMAND, Protocol.STM32_GET_ID_COMMAND,
+            Protocol.STM32_READ_COMMAND, Protocol.STM32_GO_COMMAND, Protocol.STM32_WRITE_COMMAND };
+    private static final byte[] BOTH_ERASE_COMMANDS = {
+            Protocol.STM32_GET_COMMAND, Protocol.STM32_GVRP_COMMAND, Protocol.STM32_GET_ID_COMMAND,
+            Protocol.STM32_READ_COMMAND, Protocol.STM32_GO_COMMAND, Protocol.STM32_WRITE_COMMAND,
+            Protocol.STM32_ERASE_COMMAND, Protocol.STM32_EER_COMMAND };
+
+    private PipeTransport mHost;
+    private BootloaderSimulator mSimulator;
+    private Bootloader mBootloader;
+    private File mFile;
+    private File mManifestDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        connect(DEVICE_ID, null);
+    }
+
+    /**
+     * Connect to a fresh simulator, commands null for its default instruction set.
+     */
+    private void connect(int deviceID, byte[] commands) throws IOException {
+        if (mSimulator != null) {
+            mSimulator.stop();
+            mHost.close();
+        }
+        mHost = new PipeTransport();
+        mSimulator = new BootloaderSimulator(deviceID, mHost.getPeer());
+        if (commands != null)
+            mSimulator.setCommands(commands);
+        mSimulator.start();
+        mBootloader = new Bootloader(mHost, new Logger(System.err, 0), null);
+        assertTrue(mBootloader.init());
+        assertTrue(mBootloader.getCommands());
+        assertTrue(mBootloader.getDeviceInfo());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSimulator.stop();
+        mHost.close();
+        if (mFile != null)
+            mFile.delete();
+        if (mManifestDirectory != null) {
+            for (File file : mManifestDirectory.listFiles())
+                file.delete();
+            mManifestDirectory.delete();
+        }
+    }
+
+    private void keepManifest() throws IOException {
+        mManifestDirectory = File.createTempFile("manifest", "");
+        assertTrue(mManifestDirectory.delete() && mManifestDirectory.mkdir());
+        mBootloader.setManifestDirectory(mManifestDirectory);
+        mBootloader.setLinkAddress("00:11:22:33:44:55");
+    }
+
+    private byte[] writeImage(int length) throws IOException {
+        byte[] image = new byte[length];
+        new Random(1).nextBytes(image);
+        writeFile(image);
+        return image;
+    }
+
+    private void writeFile(byte[] image) throws IOException {
+        if (mFile == null)
+            mFile = File.createTempFile("firmware", ".bin");
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(image);
+        out.close();
+    }
+
+    private byte[] flash(int length) {
+        return mSimulator.getMemory(mSimulator.getDevice().getFlashStart(), length);
+    }
+
+    /**
+     * Fill length bytes of the simulated flash with a non erased pattern.
+     */
+    private void fillFlash(int length) {
+        byte[] pattern = new byte[length];
+        Arrays.fill(pattern, (byte) 0x55);
+        mSimulator.setMemory(mSimulator.getDevice().getFlashStart(), pattern);
+    }
+
+    private boolean isErased(long address, int length) {
+        for (byte b : mSimulator.getMemory(address, length))
+            if (b != (byte) 0xFF)
+                return false;
+        return true;
+    }
+
+    private boolean isFilled(long address, int length) {
+        for (byte b : mSimulator.getMemory(address, length))
+            if (b != 0x55)
+                return false;
+        return true;
+    }
+
+    @Test
+    public void writeAndVerify() throws IOException {
+        byte[] image = writeImage(10 * 1024 + 6);
+        mBootloader.setVerifyAfterWrite(true);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertArrayEquals(image, flash(image.length));
+    }
+
+    @Test
+    public void writePipelinedAndVerify() throws IOException {
+        byte[] image = writeImage(8 * 1024);
+        mBootloader.setPipelineWindow(Bootloader.DEFAULT_PIPELINE_WINDOW);
+        mBootloader.setVerifyAfterWrite(true);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertArrayEquals(image, flash(image.length));
+    }
+
+    @Test
+    public void writeWithLostAck() throws IOException {
+        byte[] image = writeImage(4 * 1024);
+        mSimulator.setDropWriteAck(7);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertArrayEquals(image, flash(image.length));
+    }
+
+    @Test
+    public void writePipelinedWithLostAck() throws IOException {
+        byte[] image = writeImage(4 * 1024);
+        mBootloader.setPipelineWindow(Bootloader.DEFAULT_PIPELINE_WINDOW);
+        mSimulator.setDropWriteAck(7);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertArrayEquals(image, flash(image.length));
+    }
+
+    @Test
+    public void writeImageWithoutErase() throws IOException {
+        long start = mSimulator.getDevice().getFlashStart();
+        byte[] first = {1, 2, 3, 4, 5, 6, 7, 8};
+        byte[] second = {9, 10, 11, 12};
+        FirmwareImage image = new FirmwareImage();
+        image.append(start, first, 0, first.length);
+        image.append(start + 0x300, second, 0, second.length);
+        image.flush();
+        mBootloader.setPreEraseAll(false);
+        assertTrue(mBootloader.writeImage(image));
+        // The gap between the segments shares their erase page, but it is not sent
+        assertEquals(2, mSimulator.getPagesWritten());
+        assertArrayEquals(first, mSimulator.getMemory(start, first.length));
+        assertArrayEquals(second, mSimulator.getMemory(start + 0x300, second.length));
+    }
+
+    @Test
+    public void erasePageListsOfErase() throws IOException {
+        connect(0x414, ERASE_COMMANDS);
+        Device device = mSimulator.getDevice();
+        assertEquals(256, device.getErasePageCount());
+        assertEquals(Protocol.STM32_ERASE_COMMAND, mBootloader.getEraseCommand());
+        assertTrue(mBootloader.eraseMemory(device.getFlashStart(), device.getFlashEnd() - device.getFlashStart()));
+        // N = 0xFF would be a global erase, so 256 pages take two page lists
+        assertEquals(2, mSimulator.getEraseCount());
+        assertEquals(256, mSimulator.getPagesErased());
+        assertEquals(0, mSimulator.getMassEraseCount());
+    }
+
+    @Test
+    public void eraseFootprint() throws IOException {
+        long start = mSimulator.getDevice().getFlashStart();
+        fillFlash(8 * 1024);
+        assertTrue(mBootloader.eraseMemory(start + 0xC10, 0x500));
+        assertEquals(1, mSimulator.getEraseCount());
+        assertEquals(2, mSimulator.getPagesErased());
+        assertTrue(isFilled(start, 0xC00));
+        assertTrue(isErased(start + 0xC00, 0x800));
+        assertTrue(isFilled(start + 0x1400, 0xC00));
+    }
+
+    @Test
+    public void eraseExtendedPageLists() throws IOException {
+        connect(0x436, null);
+        Device device = mSimulator.getDevice();
+        assertEquals(3 * Protocol.STM32_EER_MAX_PAGES, device.getErasePageCount());
+        assertEquals(Protocol.STM32_EER_COMMAND, mBootloader.getEraseCommand());
+        assertTrue(mBootloader.eraseMemory(device.getFlashStart(), device.getFlashEnd() - device.getFlashStart()));
+        assertEquals(3, mSimulator.getEraseCount());
+        assertEquals(device.getErasePageCount(), mSimulator.getPagesErased());
+        assertEquals(0, mSimulator.getMassEraseCount());
+    }
+
+    @Test
+    public void eraseSectors() throws IOException {
+        connect(0x413, null);
+        long start = mSimulator.getDevice().getFlashStart();
+        fillFlash(0x60000);
+        // Sector 5 is the first 128 KB sector, after four of 16 KB and one of 64 KB
+        assertEquals(5, mSimulator.getDevice().getErasePage(start + 0x20005));
+        assertTrue(mBootloader.eraseMemory(start + 0x20005, 1));
+        assertEquals(1, mSimulator.getPagesErased());
+        assertTrue(isFilled(start, 0x20000));
+        assertTrue(isErased(start + 0x20000, 0x20000));
+        assertTrue(isFilled(start + 0x40000, 0x20000));
+        // Sectors 3 to 5
+        fillFlash(0x60000);
+        assertTrue(mBootloader.eraseMemory(start + 0xC000, 0x14001));
+        assertEquals(4, mSimulator.getPagesErased());
+        assertTrue(isFilled(start, 0xC000));
+        assertTrue(isErased(start + 0xC000, 0x34000));
+        assertTrue(isFilled(start + 0x40000, 0x20000));
+    }
+
+    @Test
+    public void selectEraseCommand() throws IOException {
+        assertEquals(Protocol.STM32_EER_COMMAND, mBootloader.getEraseCommand());
+        connect(DEVICE_ID, BOTH_ERASE_COMMANDS);
+        assertEquals(Protocol.STM32_EER_COMMAND, mBootloader.getEraseCommand());
+        connect(DEVICE_ID, ERASE_COMMANDS);
+        assertEquals(Protocol.STM32_ERASE_COMMAND, mBootloader.getEraseCommand());
+        assertTrue(mBootloader.eraseMemory(mSimulator.getDevice().getFlashStart(), 1));
+        assertEquals(1, mSimulator.getPagesErased());
+        connect(DEVICE_ID, NO_ERASE_COMMANDS);
+        assertEquals(0, mBootloader.getEraseCommand());
+        assertFalse(mBootloader.eraseMemory(mSimulator.getDevice().getFlashStart(), 1));
+        assertEquals(0, mSimulator.getPagesErased());
+    }
+
+    @Test
+    public void erasePageBeyondEraseCommand() throws IOException {
+        connect(0x430, ERASE_COMMANDS);
+        Device device = mSimulator.getDevice();
+        long address = device.getErasePageStart(Protocol.STM32_ERASE_PAGE_LIMIT);
+        assertFalse(mBootloader.eraseMemory(address, 1));
+        assertEquals(0, mSimulator.getEraseCount());
+    }
+
+    @Test
+    public void massErase() throws IOException {
+        fillFlash(8 * 1024);
+        assertTrue(mBootloader.extendedEraseMemory());
+        assertEquals(1, mSimulator.getMassEraseCount());
+        assertTrue(isErased(mSimulator.getDevice().getFlashStart(), 8 * 1024));
+        // Global erase of the legacy Erase Command
+        connect(DEVICE_ID, ERASE_COMMANDS);
+        fillFlash(8 * 1024);
+        assertTrue(mBootloader.extendedEraseMemory());
+        assertEquals(1, mSimulator.getMassEraseCount());
+        assertTrue(isErased(mSimulator.getDevice().getFlashStart(), 8 * 1024));
+    }
+
+    @Test
+    public void eraseProgress() throws IOException {
+        final List<long[]> progress = new ArrayList<long[]>();
+        mBootloader.setOnEraseProgressListener(new OnBootloaderEventListener() {
+            @Override
+            public void onByte(long[] num) {
+                progress.add(num.clone());
+            }
+        });
+        mSimulator.setPageEraseTime(100000);
+        assertTrue(mBootloader.eraseMemory(mSimulator.getDevice().getFlashStart(), 8 * 1024));
+        assertEquals(8, mSimulator.getPagesErased());
+        assertTrue(progress.size() >= 2);
+        long elapsed = 0;
+        for (long[] p : progress) {
+            assertEquals(mSimulator.getDevice().getEraseTime(0, 8), p[1]);
+            assertTrue(p[0] >= elapsed);
+            elapsed = p[0];
+        }
+    }
+
+    @Test
+    public void eraseTimeout() throws IOException {
+        Device device = mSimulator.getDevice();
+        // Far beyond the deadline of one page, estimated time plus the margin
+        mSimulator.setPageEraseTime(2 * 1000 * (device.getEraseTime(0, 1) + Protocol.STM32_READ_TIMEOUT));
+        long start = System.currentTimeMillis();
+        assertFalse(mBootloader.eraseMemory(device.getFlashStart(), 1));
+        assertTrue(System.currentTimeMillis() - start < 2 * (device.getEraseTime(0, 1) + Protocol.STM32_READ_TIMEOUT));
+    }
+
+    @Test
+    public void differentialWrite() throws IOException {
+        byte[] image = writeImage(8 * 1024);
+        mBootloader.setDifferentialWrite(true);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertEquals(8, mSimulator.getPagesErased());
+        assertArrayEquals(image, flash(image.length));
+        // Only the erase page holding the change is erased and written
+        image[0xC80] ^= 0x01;
+        writeFile(image);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertEquals(9, mSimulator.getPagesErased());
+        assertEquals(4, mBootloader.getTransferStats().getPages());
+        assertEquals(28, mBootloader.getTransferStats().getSkippedPages());
+        assertArrayEquals(image, flash(image.length));
+        // Nothing is erased or written if the flash already holds the firmware
+        int written = mSimulator.getPagesWritten();
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertEquals(9, mSimulator.getPagesErased());
+        assertEquals(written, mSimulator.getPagesWritten());
+        assertEquals(32, mBootloader.getTransferStats().getSkippedPages());
+    }
+
+    @Test
+    public void manifestSkipsUnchangedPages() throws IOException {
+        keepManifest();
+        mBootloader.setPreEraseAll(true);
+        byte[] image = writeImage(8 * 1024);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertEquals(8, mSimulator.getPagesErased());
+        int written = mSimulator.getPagesWritten();
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertEquals(8, mSimulator.getPagesErased());
+        assertEquals(written, mSimulator.getPagesWritten());
+        assertEquals(32, mBootloader.getTransferStats().getSkippedPages());
+        // The changed erase page is erased and written, the others are still skipped
+        image[0x1404] ^= 0x01;
+        writeFile(image);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertEquals(9, mSimulator.getPagesErased());
+        assertEquals(written + 4, mSimulator.getPagesWritten());
+        assertArrayEquals(image, flash(image.length));
+    }
+
+    @Test
+    public void manifestSpotCheckMismatch() throws IOException {
+        keepManifest();
+        mBootloader.setPreEraseAll(true);
+        mBootloader.setManifestSpotCheck(true);
+        byte[] image = writeImage(8 * 1024);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        // Changed behind the back of the manifest, f.e. by another programmer
+        long start = mSimulator.getDevice().getFlashStart();
+        mSimulator.setMemory(start + 0x800, new byte[] {(byte) ~image[0x800]});
+        int written = mSimulator.getPagesWritten();
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertEquals(9, mSimulator.getPagesErased());
+        assertEquals(written + 4, mSimulator.getPagesWritten());
+        assertArrayEquals(image, flash(image.length));
+    }
+
+    @Test
+    public void massEraseClearsManifest() throws IOException {
+        keepManifest();
+        mBootloader.setPreEraseAll(true);
+        // Without the spot check only the manifest tells the pages are erased
+        mBootloader.setManifestSpotCheck(false);
+        byte[] image = writeImage(8 * 1024);
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertTrue(mBootloader.extendedEraseMemory());
+        int written = mSimulator.getPagesWritten();
+        assertTrue(mBootloader.writeMemory(mFile.getPath()));
+        assertEquals(written + 32, mSimulator.getPagesWritten());
+        assertEquals(0, mBootloader.getTransferStats().getSkippedPages());
+        assertArrayEquals(image, flash(image.length));
+    }
+}
@@ -0,0 +1,99 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FirmwareCacheTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("firmware", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private ByteBuffer writeFile(int value, int length) throws IOException {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(data);
+        out.close();
+        return ByteBuffer.wrap(data);
+    }
+
+    @Test
+    public void hitWhileFileUnchanged() throws IOException {
+        FirmwareCache cache = new FirmwareCache();
+        cache.put(mFile, writeFile(1, 1024));
+        assertNotNull(cache.get(mFile));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void missWhenContentChangedWithSameTimeAndSize() throws IOException {
+        FirmwareCache cache = new FirmwareCache();
+        cache.put(mFile, writeFile(1, 1024));
+        long modified = mFile.lastModified();
+        writeFile(2, 1024);
+        mFile.setLastModified(modified);
+        assertNull(cache.get(mFile));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void countPlanAgainstLimit() throws IOException {
+        FirmwareCache cache = new FirmwareCache();
+        ByteBuffer data = writeFile(1, 2048);
+        FirmwareCache.Entry entry = cache.put(mFile, data);
+        TransmissionPlan plan = TransmissionPlan.compile(0x08000000L, entry.getBinary(), 256, null);
+        entry.putPlan("8000000/256", plan);
+        assertEquals(2048 + plan.getLength(), cache.getBytes());
+        entry.putPageHashes("410@8000000", new String[2]);
+        assertTrue(cache.getBytes() > 2048 + plan.getLength());
+    }
+
+    @Test
+    public void evictWhenPlanExceedsLimit() throws IOException {
+        FirmwareCache cache = new FirmwareCache(4096);
+        FirmwareCache.Entry entry = cache.put(mFile, writeFile(1, 2048));
+        assertEquals(1, cache.size());
+        entry.putPlan("8000000/256", TransmissionPlan.compile(0x08000000L, entry.getBinary(), 256, null));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+}
@@ -0,0 +1,73 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IntelHexParserTest {
+    private static final String DATA = ":020000040800F2\n:0400000001020304F2\n";
+    private static final String END = ":00000001FF\n";
+
+    private static FirmwareImage parse(String hex) throws IOException {
+        return IntelHexParser.parse(new StringReader(hex));
+    }
+
+    private static void assertRejected(String hex, String message) {
+        try {
+            parse(hex);
+            fail("Accepted " + hex);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void parseRecords() throws IOException {
+        FirmwareImage image = parse(DATA + END);
+        assertEquals(0x08000000L, image.getStart());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, image.getSegments().get(0x08000000L));
+    }
+
+    @Test
+    public void rejectTooLongRecord() {
+        StringBuilder line = new StringBuilder(":00");
+        while (line.length() < 1201)
+            line.append("00");
+        assertRejected(line + "\n" + END, "too long in line 1");
+    }
+
+    @Test
+    public void rejectChecksumError() {
+        assertRejected(":020000040800F2\n:0400000001020304F3\n" + END, "Checksum error in line 2");
+    }
+
+    @Test
+    public void rejectMissingEndOfFile() {
+        assertRejected(DATA, "End of file record missing");
+    }
+}
@@ -0,0 +1,97 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory Transport. Each PipeTransport is one end of a full duplex link,
+ * the other end is available with {@link #getPeer()}. Each direction is a
+ * {@link ByteRingBuffer} with one writing and one reading thread.
+ */
+public class PipeTransport implements Transport {
+    private static final int PIPE_CAPACITY = 4096;
+
+    private final ByteRingBuffer mInPipe;
+    private final ByteRingBuffer mOutPipe;
+    private final PipeTransport mPeer;
+
+    public PipeTransport() {
+        mInPipe = new ByteRingBuffer(PIPE_CAPACITY);
+        mOutPipe = new ByteRingBuffer(PIPE_CAPACITY);
+        mPeer = new PipeTransport(this);
+    }
+
+    private PipeTransport(PipeTransport peer) {
+        mInPipe = peer.mOutPipe;
+        mOutPipe = peer.mInPipe;
+        mPeer = peer;
+    }
+
+    public PipeTransport getPeer() {
+        return mPeer;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len, long timeoutMillis) throws IOException {
+        return mInPipe.read(b, off, len, timeoutMillis);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mOutPipe.write(b, off, len);
+    }
+
+    @Override
+    public void write(ByteBuffer[] frames) throws IOException {
+        for (ByteBuffer frame : frames) {
+            int remaining = frame.remaining();
+            if (frame.hasArray()) {
+                mOutPipe.write(frame.array(), frame.arrayOffset() + frame.position(), remaining);
+                frame.position(frame.position() + remaining);
+            } else {
+                byte[] copy = new byte[remaining];
+                frame.get(copy);
+                mOutPipe.write(copy, 0, remaining);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mInPipe.available();
+    }
+
+    @Override
+    public void drain() throws IOException {
+        mInPipe.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInPipe.close(null);
+        mOutPipe.close(null);
+    }
+}
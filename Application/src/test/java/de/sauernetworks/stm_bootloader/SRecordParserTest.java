@@ -0,0 +1,73 @@
+package de.sauernetworks.stm_bootloader;
+
+/**
+ * stm32_bluetooth_flashloader - Open Source Android App to flash ST STM32 over bluetooth
+ * Copyright (C) 2015 Michael Sauer <sauer.uetersen@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ **/
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SRecordParserTest {
+    private static final String DATA = "S00600004844521B\nS3090800000001020304E4\n";
+    private static final String END = "S70508000000F2\n";
+
+    private static FirmwareImage parse(String srec) throws IOException {
+        return SRecordParser.parse(new StringReader(srec));
+    }
+
+    private static void assertRejected(String srec, String message) {
+        try {
+            parse(srec);
+            fail("Accepted " + srec);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void parseRecords() throws IOException {
+        FirmwareImage image = parse(DATA + END);
+        assertEquals(0x08000000L, image.getEntryPoint());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, image.getSegments().get(0x08000000L));
+    }
+
+    @Test
+    public void rejectTooLongRecord() {
+        StringBuilder line = new StringBuilder("S3");
+        while (line.length() < 1200)
+            line.append("00");
+        assertRejected(line + "\n" + END, "too long in line 1");
+    }
+
+    @Test
+    public void rejectChecksumError() {
+        assertRejected("S3090800000001020304E5\n" + END, "Checksum error in line 1");
+    }
+
+    @Test
+    public void rejectMissingTermination() {
+        assertRejected(DATA, "Termination record missing");
+    }
+}